@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.bench;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each segment with an exact alarm on its deadline, as
+ * AlarmManager.setExact() does. The alarm is delivered on a thread of
+ * its own and then posted to the scheduler, as an intent to the service.
+ */
+public class AlarmOutput extends StandInOutput {
+	private final ScheduledExecutorService alarmThread;
+
+	public AlarmOutput(final ScheduledExecutorService scheduler) {
+		super(scheduler);
+		alarmThread = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@Override
+	public void startSegment(final int event) {
+		final long now = engine.getClock().now();
+		final long deadline = engine.getDeadline(event);
+		started(now, deadline);
+		alarmThread.schedule(postSegmentEnd, deadline - now, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void release() {
+		alarmThread.shutdownNow();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.bench;
+
+import java.util.Arrays;
+
+/**
+ * The samples of one measure, in microseconds. The percentiles are by
+ * the nearest rank. Samples may be added from any thread.
+ */
+public class Distribution {
+	private final String name;
+	private long[] samples = new long[64];
+	private int count;
+
+	public Distribution(final String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized void add(final long sample) {
+		if (count == samples.length)
+			samples = Arrays.copyOf(samples, count * 2);
+		samples[count++] = sample;
+	}
+
+	public synchronized void addAll(final Distribution other) {
+		for (int i = 0; i < other.getCount(); i++)
+			add(other.get(i));
+	}
+
+	/** Returns the sample in the order added. */
+	public synchronized long get(final int i) {
+		return samples[i];
+	}
+
+	public synchronized long getFirst() {
+		return count == 0 ? 0 : samples[0];
+	}
+
+	public synchronized long getLast() {
+		return count == 0 ? 0 : samples[count - 1];
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/** Returns the percentile, 0 to 100, or 0 if there is no sample. */
+	public synchronized long getPercentile(final double p) {
+		if (count == 0) return 0;
+		final long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		final int rank = (int) Math.ceil(p / 100 * count);
+		return sorted[Math.max(0, Math.min(count, rank) - 1)];
+	}
+
+	public long getMax() {
+		return getPercentile(100);
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.bench;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each segment with a delayed message on the scheduler thread, as
+ * Handler.postDelayed() does. The delay is the segment length from now,
+ * so any lateness is carried over to the events after.
+ */
+public class HandlerOutput extends StandInOutput {
+	public HandlerOutput(final ScheduledExecutorService scheduler) {
+		super(scheduler);
+	}
+
+	@Override
+	public void startSegment(final int event) {
+		final long now = engine.getClock().now();
+		final long length = segmentLength(event);
+		started(now, now + length);
+		scheduler.schedule(segmentEnd, length, TimeUnit.MILLISECONDS);
+	}
+}
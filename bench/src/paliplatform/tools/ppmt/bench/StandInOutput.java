@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.bench;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import paliplatform.tools.ppmt.SessionEngine;
+
+/**
+ * The output of a session under a scheduling strategy, with a stand-in
+ * for the audio. The engine is only called on the scheduler thread, as in
+ * PlayerService. Each ring is an onset, taken when the callback arrives,
+ * since that is when the bell is started.
+ */
+public abstract class StandInOutput implements SessionEngine.Output {
+	public static final String[] STRATEGIES = { "handler", "alarm", "tracks", "stream" };
+	protected final ScheduledExecutorService scheduler;
+	protected SessionEngine engine;
+	private long baseNanos;
+	private Distribution onsets;
+	private Distribution gaps;
+
+	protected StandInOutput(final ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public static StandInOutput create(final String strategy, final ScheduledExecutorService scheduler,
+							final int startLatencyMillis, final int periodMillis) {
+		switch (strategy) {
+			case "handler": return new HandlerOutput(scheduler);
+			case "alarm": return new AlarmOutput(scheduler);
+			case "tracks": return new TrackOutput(scheduler, startLatencyMillis);
+			case "stream": return new StreamOutput(scheduler, periodMillis);
+			default: throw new IllegalArgumentException("Unknown strategy: " + strategy);
+		}
+	}
+
+	/** Attaches the engine, whose clock counts milliseconds from baseNanos. */
+	public void attach(final SessionEngine engine, final long baseNanos, final Distribution onsets, final Distribution gaps) {
+		this.engine = engine;
+		this.baseNanos = baseNanos;
+		this.onsets = onsets;
+		this.gaps = gaps;
+	}
+
+	/** Releases the threads of the stand-in. */
+	public void release() {
+	}
+
+	/** Records the start of a segment into the engine, and the gap from the last one. */
+	protected void started(final long startTime, final long endTime) {
+		final int count = engine.getBoundaryCount();
+		engine.segmentStarted(startTime, endTime);
+		if (engine.getBoundaryCount() > count)
+			gaps.add(engine.getLastBoundaryGap() * 1000L);
+	}
+
+	/** Returns the length of the segment ending at the event, in milliseconds. */
+	protected long segmentLength(final int event) {
+		return event == 0
+				? engine.getDeadline(0) - engine.getSessionStartTime()
+				: engine.getDeadline(event) - engine.getDeadline(event - 1);
+	}
+
+	protected final Runnable segmentEnd = new Runnable() {
+		@Override
+		public void run() {
+			engine.segmentEnded();
+		}
+	};
+
+	/** Posts the end of the segment to the scheduler, as a player callback does. */
+	protected final Runnable postSegmentEnd = new Runnable() {
+		@Override
+		public void run() {
+			scheduler.execute(segmentEnd);
+		}
+	};
+
+	@Override
+	public void ring(final int event) {
+		final long micros = (System.nanoTime() - baseNanos) / 1000;
+		onsets.add(micros - engine.getDeadline(event) * 1000);
+	}
+}
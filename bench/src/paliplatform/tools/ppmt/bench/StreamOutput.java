@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.bench;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Streams silence through a stand-in of AudioTrack, as SilenceStream does.
+ * A writer thread fills the buffer with zeros, and a sink thread plays it
+ * at the sample rate, waking once a period. When the playhead passes the
+ * marker at the end of a segment, the end is posted to the scheduler.
+ * If the writer falls behind, the playhead waits, as in an underrun.
+ */
+public class StreamOutput extends StandInOutput {
+	private static final int SAMPLE_RATE = 22050;
+	private final int periodMillis;
+	private final int bufferFrames;
+	private final short[] zeros;
+	private volatile boolean running;
+	private long streamStartTime;
+	private long startNanos;
+	private long framesWritten;
+	private long framesPlayed;
+	private long underrunFrames;
+	private long markerFrame;
+	private Thread writer;
+	private Thread sink;
+
+	public StreamOutput(final ScheduledExecutorService scheduler, final int periodMillis) {
+		super(scheduler);
+		this.periodMillis = periodMillis;
+		// a quarter of a second per write, as in SilenceStream
+		bufferFrames = SAMPLE_RATE / 4;
+		zeros = new short[bufferFrames];
+		markerFrame = -1;
+	}
+
+	@Override
+	public void startSegment(final int event) {
+		final long now = engine.getClock().now();
+		if (!running) {
+			running = true;
+			streamStartTime = now;
+			startNanos = System.nanoTime();
+			writer = new Thread(null, doWriting, "silence-writer");
+			sink = new Thread(null, doPlaying, "audio-sink");
+			writer.start();
+			sink.start();
+		}
+		// the segment is sized to end on its deadline
+		final long deadline = engine.getDeadline(event);
+		synchronized (this) {
+			markerFrame = (deadline - streamStartTime) * SAMPLE_RATE / 1000;
+		}
+		started(now, deadline);
+	}
+
+	@Override
+	public void release() {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		try {
+			if (writer != null) writer.join(1000);
+			if (sink != null) sink.join(1000);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private Runnable doWriting = new Runnable() {
+		@Override
+		public void run() {
+			final short[] block = new short[bufferFrames];
+			while (running) {
+				synchronized (StreamOutput.this) {
+					// the track holds four writes, as in SilenceStream
+					while (running && framesWritten - framesPlayed >= bufferFrames * 4) {
+						try {
+							StreamOutput.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+				System.arraycopy(zeros, 0, block, 0, bufferFrames);
+				synchronized (StreamOutput.this) {
+					framesWritten += block.length;
+				}
+			}
+		}
+	};
+
+	private Runnable doPlaying = new Runnable() {
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					Thread.sleep(periodMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+				boolean reached = false;
+				synchronized (StreamOutput.this) {
+					final long due = (System.nanoTime() - startNanos) * SAMPLE_RATE / 1000000000L - underrunFrames;
+					if (due > framesWritten) {
+						underrunFrames += due - framesWritten;
+						framesPlayed = framesWritten;
+					} else {
+						framesPlayed = due;
+					}
+					if (markerFrame >= 0 && framesPlayed >= markerFrame) {
+						markerFrame = -1;
+						reached = true;
+					}
+					StreamOutput.this.notifyAll();
+				}
+				if (reached)
+					scheduler.execute(segmentEnd);
+			}
+		}
+	};
+}
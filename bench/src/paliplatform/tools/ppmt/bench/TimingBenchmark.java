@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import paliplatform.tools.ppmt.SessionEngine;
+import paliplatform.tools.ppmt.Timeline;
+
+/**
+ * Runs real-time sessions through the session engine under each scheduling
+ * strategy, and measures how close the bells come to their deadlines.
+ * The audio is replaced by stand-ins, so it runs headless on a desktop JVM.
+ * The measures are:
+ * <ul>
+ * <li>onset: how late each event is from its deadline,</li>
+ * <li>gap: the gap between a segment and the next, to the millisecond,</li>
+ * <li>drift: how much later the last event is than the first, per session,</li>
+ * <li>cpu: the CPU time of the process, per session.</li>
+ * </ul>
+ * All are in microseconds, and the results are written as CSV.
+ * <p>
+ * Usage: TimingBenchmark [--strategies handler,alarm,tracks,stream]
+ * [--interval-ms 2000] [--repeat 10] [--prepare-ms 1000] [--sessions 3]
+ * [--start-latency-ms 0] [--period-ms 20] [--load 0] [--out bench-results.csv]
+ */
+public class TimingBenchmark {
+	private static final String HEADER = "strategy,measure,unit,count,p50,p99,max,"
+									+ "interval_ms,repeat,sessions,load,java,os,cpus";
+	private String[] strategies = StandInOutput.STRATEGIES;
+	private long intervalMillis = 2000;
+	private int repeat = 10;
+	private int prepareMillis = 1000;
+	private int sessions = 3;
+	private int startLatencyMillis = 0;
+	private int periodMillis = 20;
+	private int load = 0;
+	private String outPath = "bench-results.csv";
+	private volatile boolean loading;
+
+	public static void main(final String[] args) throws Exception {
+		final TimingBenchmark bench = new TimingBenchmark();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			final String val = args[i + 1];
+			switch (args[i]) {
+				case "--strategies": bench.strategies = val.split(","); break;
+				case "--interval-ms": bench.intervalMillis = Long.parseLong(val); break;
+				case "--repeat": bench.repeat = Integer.parseInt(val); break;
+				case "--prepare-ms": bench.prepareMillis = Integer.parseInt(val); break;
+				case "--sessions": bench.sessions = Integer.parseInt(val); break;
+				case "--start-latency-ms": bench.startLatencyMillis = Integer.parseInt(val); break;
+				case "--period-ms": bench.periodMillis = Integer.parseInt(val); break;
+				case "--load": bench.load = Integer.parseInt(val); break;
+				case "--out": bench.outPath = val; break;
+				default:
+					System.err.println("Unknown option: " + args[i]);
+					System.exit(2);
+			}
+		}
+		bench.run();
+	}
+
+	private void run() throws IOException, InterruptedException {
+		final List<Thread> loaders = startLoad();
+		final List<String> records = new ArrayList<>();
+		System.out.println(String.format("%-8s %-6s %6s %10s %10s %10s", "strategy", "measure", "count", "p50", "p99", "max"));
+		for (final String strategy : strategies) {
+			final Distribution onsets = new Distribution("onset");
+			final Distribution gaps = new Distribution("gap");
+			final Distribution drifts = new Distribution("drift");
+			final Distribution cpus = new Distribution("cpu");
+			for (int i = 0; i < sessions; i++)
+				runSession(strategy, onsets, gaps, drifts, cpus);
+			for (final Distribution d : new Distribution[] { onsets, gaps, drifts, cpus }) {
+				System.out.println(String.format("%-8s %-6s %6d %10d %10d %10d", strategy, d.getName(), d.getCount(),
+									d.getPercentile(50), d.getPercentile(99), d.getMax()));
+				records.add(strategy + "," + d.getName() + ",us," + d.getCount() + "," + d.getPercentile(50)
+							+ "," + d.getPercentile(99) + "," + d.getMax() + "," + intervalMillis + "," + repeat
+							+ "," + sessions + "," + load + "," + System.getProperty("java.version")
+							+ "," + System.getProperty("os.name") + " " + System.getProperty("os.arch")
+							+ "," + Runtime.getRuntime().availableProcessors());
+			}
+		}
+		loading = false;
+		for (final Thread t : loaders)
+			t.join();
+		try (final FileWriter writer = new FileWriter(outPath)) {
+			writer.write(HEADER + "\n");
+			for (final String r : records)
+				writer.write(r + "\n");
+		}
+		System.out.println("Results written to " + outPath);
+	}
+
+	private void runSession(final String strategy, final Distribution onsets, final Distribution gaps,
+							final Distribution drifts, final Distribution cpus) throws InterruptedException {
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "scheduler");
+				t.setPriority(Thread.MAX_PRIORITY);
+				return t;
+			}
+		});
+		final long baseNanos = System.nanoTime();
+		final SessionEngine.Clock clock = new SessionEngine.Clock() {
+			@Override
+			public long now() {
+				return (System.nanoTime() - baseNanos) / 1000000;
+			}
+		};
+		final StandInOutput output = StandInOutput.create(strategy, scheduler, startLatencyMillis, periodMillis);
+		final Distribution sessionOnsets = new Distribution("onset");
+		final CountDownLatch done = new CountDownLatch(1);
+		final SessionEngine engine = new SessionEngine(clock, output, new SessionEngine.Listener() {
+			@Override
+			public void onSessionChanged() {
+			}
+			@Override
+			public void onDrift(final int event, final int drift) {
+			}
+			@Override
+			public void onSessionEnd(final boolean completed) {
+				done.countDown();
+			}
+		});
+		output.attach(engine, baseNanos, sessionOnsets, gaps);
+		final Timeline tl = Timeline.compileMillis(intervalMillis, repeat, "small", "no", 0, prepareMillis);
+		final long cpuStart = getProcessCpuNanos();
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				engine.start(tl, false);
+			}
+		});
+		done.await(tl.getTotalMillis() * 2 + 10000, TimeUnit.MILLISECONDS);
+		final long cpuEnd = getProcessCpuNanos();
+		output.release();
+		scheduler.shutdownNow();
+		scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		if (sessionOnsets.getCount() < tl.size())
+			System.err.println(strategy + ": session not completed in time");
+		onsets.addAll(sessionOnsets);
+		drifts.add(sessionOnsets.getLast() - sessionOnsets.getFirst());
+		if (cpuStart >= 0)
+			cpus.add((cpuEnd - cpuStart) / 1000);
+	}
+
+	/** Returns the CPU time of the process in nanoseconds, or -1 if unknown. */
+	private static long getProcessCpuNanos() {
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
+
+	/** Starts busy threads, to see how each strategy holds up on a loaded device. */
+	private List<Thread> startLoad() {
+		final List<Thread> loaders = new ArrayList<>();
+		loading = true;
+		for (int i = 0; i < load; i++) {
+			final Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long x = 0;
+					while (loading)
+						x += System.nanoTime() % 7;
+					if (x == 42) System.out.print("");
+				}
+			}, "load-" + i);
+			t.setDaemon(true);
+			t.start();
+			loaders.add(t);
+		}
+		return loaders;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.bench;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays each segment as a silence track of the full interval, as the pool
+ * players of PlayerService do. A track is heard after the start latency
+ * of the player, and its completion is delivered on the media thread and
+ * posted to the scheduler.
+ */
+public class TrackOutput extends StandInOutput {
+	private final ScheduledExecutorService mediaThread;
+	private final int startLatencyMillis;
+
+	public TrackOutput(final ScheduledExecutorService scheduler, final int startLatencyMillis) {
+		super(scheduler);
+		this.startLatencyMillis = startLatencyMillis;
+		mediaThread = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@Override
+	public void startSegment(final int event) {
+		final long now = engine.getClock().now();
+		// skip the part of the track we are late for
+		final long late = event == 0 ? 0 : Math.max(0, now - engine.getDeadline(event - 1));
+		final long duration = Math.max(0, segmentLength(event) - late);
+		final long start = now + startLatencyMillis;
+		started(start, start + duration);
+		mediaThread.schedule(postSegmentEnd, startLatencyMillis + duration, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void release() {
+		mediaThread.shutdownNow();
+	}
+}
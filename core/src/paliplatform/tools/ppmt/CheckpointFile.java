@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the state of the running session in a file of a fixed size, so
+ * the session can be resumed if the process is killed. The record is
+ * written over in place at each boundary and on pause, from a buffer
+ * made once. It is not synced, as it has to outlive the process, not
+ * the device. This class uses no Android API.
+ */
+public class CheckpointFile {
+	public static final int SIZE = 64;
+	private static final int MAGIC = 0x50504d43;
+	private static final int VERSION = 1;
+	private final File file;
+	private final ByteBuffer buffer;
+	private RandomAccessFile raf;
+
+	public CheckpointFile(final File file) {
+		this.file = file;
+		buffer = ByteBuffer.allocate(SIZE);
+	}
+
+	/**
+	 * Writes the state of the session. The session id is its number in the
+	 * journal. The times are in milliseconds, the start time and the deadline
+	 * on the monotonic clock, and the pause start is 0 if not paused. Write
+	 * errors are ignored.
+	 */
+	public synchronized void write(final long sessionId, final long startWallTime, final long startTime,
+							final int event, final long deadline, final long pauseStartTime, final int settingsHash) {
+		buffer.clear();
+		buffer.putInt(MAGIC).putInt(VERSION).putLong(sessionId).putLong(startWallTime).putLong(startTime)
+				.putInt(event).putLong(deadline).putLong(pauseStartTime).putInt(settingsHash);
+		put();
+	}
+
+	/** Marks the session as over, so it is not resumed. */
+	public synchronized void clear() {
+		if (raf == null && !file.exists()) return;
+		buffer.clear();
+		put();
+	}
+
+	private void put() {
+		while (buffer.hasRemaining())
+			buffer.put((byte) 0);
+		buffer.flip();
+		try {
+			if (raf == null)
+				raf = new RandomAccessFile(file, "rw");
+			raf.getChannel().write(buffer, 0);
+		} catch (IOException e) {
+		}
+	}
+
+	/** Returns the checkpoint of a session not over, or null. */
+	public synchronized Checkpoint read() {
+		if (!file.isFile() || file.length() < SIZE) return null;
+		final ByteBuffer buf = ByteBuffer.allocate(SIZE);
+		try (final RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			in.getChannel().read(buf, 0);
+		} catch (IOException e) {
+			return null;
+		}
+		buf.flip();
+		if (buf.remaining() < SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION) return null;
+		return new Checkpoint(buf.getLong(), buf.getLong(), buf.getLong(), buf.getInt(), buf.getLong(),
+							buf.getLong(), buf.getInt());
+	}
+
+	public synchronized void close() {
+		if (raf == null) return;
+		try {
+			raf.close();
+		} catch (IOException e) {
+		}
+		raf = null;
+	}
+
+	// inner classes
+	public static class Checkpoint {
+		private final long sessionId;
+		private final long startWallTime;
+		private final long startTime;
+		private final int event;
+		private final long deadline;
+		private final long pauseStartTime;
+		private final int settingsHash;
+		public Checkpoint(final long sessionId, final long startWallTime, final long startTime, final int event,
+							final long deadline, final long pauseStartTime, final int settingsHash) {
+			this.sessionId = sessionId;
+			this.startWallTime = startWallTime;
+			this.startTime = startTime;
+			this.event = event;
+			this.deadline = deadline;
+			this.pauseStartTime = pauseStartTime;
+			this.settingsHash = settingsHash;
+		}
+		public long getSessionId() {
+			return sessionId;
+		}
+		public long getStartWallTime() {
+			return startWallTime;
+		}
+		/** Returns the start of the session on the monotonic clock. */
+		public long getStartTime() {
+			return startTime;
+		}
+		/** Returns the event the segment being played ends at. */
+		public int getEvent() {
+			return event;
+		}
+		/** Returns the deadline of the event on the monotonic clock. */
+		public long getDeadline() {
+			return deadline;
+		}
+		/** Returns when the session was paused, or 0 if it was not. */
+		public long getPauseStartTime() {
+			return pauseStartTime;
+		}
+		public int getSettingsHash() {
+			return settingsHash;
+		}
+		public boolean isPaused() {
+			return pauseStartTime > 0;
+		}
+	}
+}
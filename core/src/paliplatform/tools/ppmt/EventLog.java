@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last events of the service, in a ring of a fixed size, to be dumped
+ * when a bell has come late. An event is a time, a type and an argument.
+ * Recording takes a slot by an atomic counter and writes into atomic
+ * arrays made once, so it has no lock and makes no object, and it may be
+ * left on in a release build. A slot being written over while it is
+ * dumped is told by its sequence and skipped.
+ * This class uses no Android API.
+ */
+public class EventLog {
+	public static final int SEGMENT_START = 1;
+	public static final int SEGMENT_END = 2;
+	public static final int RING = 3;
+	public static final int PLAYER_CREATE = 4;
+	public static final int PLAYER_RELEASE = 5;
+	public static final int TTS_INIT = 6;
+	public static final int PAUSE = 7;
+	public static final int RESUME = 8;
+	public static final int BIND = 9;
+	public static final int UNBIND = 10;
+	public static final int SESSION_START = 11;
+	public static final int SESSION_END = 12;
+	public static final int SESSION_RESTORE = 13;
+	public static final int STALL = 14;
+	private static final String[] NAMES = {
+		"?", "segment-start", "segment-end", "ring", "player-create", "player-release", "tts-init",
+		"pause", "resume", "bind", "unbind", "session-start", "session-end", "session-restore", "stall" };
+	private final int mask;
+	private final AtomicLong next;
+	/** The sequence of the event in each slot, written last, or -1 while it is being written. */
+	private final AtomicLongArray seqs;
+	private final AtomicLongArray times;
+	private final AtomicLongArray types;
+	private final AtomicLongArray args;
+
+	/** Makes a ring of the size rounded up to a power of 2. */
+	public EventLog(final int size) {
+		int n = 1;
+		while (n < size)
+			n <<= 1;
+		mask = n - 1;
+		next = new AtomicLong();
+		seqs = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++)
+			seqs.set(i, -1);
+		times = new AtomicLongArray(n);
+		types = new AtomicLongArray(n);
+		args = new AtomicLongArray(n);
+	}
+
+	/** Records the event at the time in milliseconds. May be called on any thread. */
+	public void record(final long time, final int type, final long arg) {
+		final long seq = next.getAndIncrement();
+		final int slot = (int) seq & mask;
+		seqs.set(slot, -1);
+		times.set(slot, time);
+		types.set(slot, type);
+		args.set(slot, arg);
+		seqs.set(slot, seq);
+	}
+
+	/** Returns the number of events recorded since the start, also those written over. */
+	public long getCount() {
+		return next.get();
+	}
+
+	public static String getName(final int type) {
+		return type > 0 && type < NAMES.length ? NAMES[type] : NAMES[0];
+	}
+
+	/** Prints the events in the ring, the oldest first, with their times before now. */
+	public void dump(final PrintWriter out, final long now) {
+		final long end = next.get();
+		final long start = Math.max(0, end - (mask + 1));
+		out.println("events: " + end + " recorded, last " + (end - start) + " shown, ms before now");
+		for (long seq = start; seq < end; seq++) {
+			final int slot = (int) seq & mask;
+			if (seqs.get(slot) != seq) continue;
+			final long time = times.get(slot);
+			final int type = (int) types.get(slot);
+			final long arg = args.get(slot);
+			// written over while read
+			if (seqs.get(slot) != seq) continue;
+			out.println(String.format("%8d %-16s %d", now - time, getName(type), arg));
+		}
+	}
+}
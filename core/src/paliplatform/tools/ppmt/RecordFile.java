@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * A small CSV file that records are appended to, one per line,
+ * with the header as the first line. The file is started over
+ * when it grows too big. This class uses no Android API.
+ */
+public class RecordFile {
+	private final File file;
+	private final String header;
+	private final long maxBytes;
+
+	public RecordFile(final File file, final String header, final long maxBytes) {
+		this.file = file;
+		this.header = header;
+		this.maxBytes = maxBytes;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Appends the record, ignoring any write error. */
+	public synchronized void append(final String record) {
+		if (file.length() > maxBytes)
+			file.delete();
+		final boolean isNew = !file.exists();
+		try (final FileWriter writer = new FileWriter(file, true)) {
+			if (isNew)
+				writer.write(header + "\n");
+			writer.write(record + "\n");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+/**
+ * Walks a session through its timeline. The engine keeps the deadlines of
+ * the events, the current repeat and the boundary records, and tells the
+ * output when to start a segment and when to ring. The output tells the
+ * engine when a segment has started and when it has ended. Time and audio
+ * are behind interfaces, so a session can also be run on a virtual clock.
+ * The engine is not thread-safe, all calls are made on one thread.
+ * This class uses no Android API.
+ */
+public class SessionEngine {
+	private final Clock clock;
+	private final Output output;
+	private final Listener listener;
+	private Timeline timeline;
+	private boolean running;
+	private boolean inSilence;
+	private boolean followClock;
+	private int currRepeat;
+	private long sessionStartTime;
+	private long[] deadlines;
+	private int[] boundaryDrifts;
+	private long segmentEndTime;
+	private long pauseStartTime;
+	private int lastBoundaryGap;
+	private int maxBoundaryGap;
+	private long totalBoundaryGap;
+	private int boundaryCount;
+
+	public interface Clock {
+		/** Returns the time in milliseconds on a monotonic clock. */
+		long now();
+	}
+
+	public interface Output {
+		/**
+		 * Starts the segment ending at the event, the preparation being 0.
+		 * The output calls segmentStarted() once it is playing, and
+		 * segmentEnded() when it is over. It may end the session instead.
+		 */
+		void startSegment(int event);
+		/** Plays the leading clicks of the event, then its bell or phrase. */
+		void ring(int event);
+	}
+
+	public interface Listener {
+		/** Called when the state has changed, i.e., at a boundary, on pause and on resume. */
+		void onSessionChanged();
+		/** Called with the drift of each event from its deadline, in milliseconds. */
+		void onDrift(int event, int drift);
+		/** Called once when the session is over. */
+		void onSessionEnd(boolean completed);
+	}
+
+	public SessionEngine(final Clock clock, final Output output, final Listener listener) {
+		this.clock = clock;
+		this.output = output;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts the session now. Every event has a fixed deadline from the start.
+	 * If followClock is set, the output has no boundary callbacks and the
+	 * repeat is followed by the deadlines, as in a rendered session.
+	 */
+	public void start(final Timeline tl, final boolean followClock) {
+		timeline = tl;
+		this.followClock = followClock;
+		currRepeat = 0;
+		sessionStartTime = clock.now();
+		final long[] times = new long[tl.size()];
+		for (int i = 0; i < times.length; i++)
+			times[i] = sessionStartTime + tl.getOffset(i);
+		deadlines = times;
+		boundaryDrifts = new int[tl.size()];
+		segmentEndTime = 0;
+		pauseStartTime = 0;
+		lastBoundaryGap = 0;
+		maxBoundaryGap = 0;
+		totalBoundaryGap = 0;
+		boundaryCount = 0;
+		running = true;
+		inSilence = true;
+		output.startSegment(0);
+	}
+
+	/**
+	 * Resumes a session saved while the segment ending at the event was
+	 * playing, e.g., after the process is killed. The deadlines are made
+	 * again from that of the event, and the segment is started with no
+	 * preparation. Events more than lateLimit overdue are skipped. Returns
+	 * false, and starts nothing, if the whole session is overdue.
+	 */
+	public boolean restore(final Timeline tl, final int event, final long deadline, final long lateLimit) {
+		final long now = clock.now();
+		final long[] times = new long[tl.size()];
+		for (int i = 0; i < times.length; i++)
+			times[i] = deadline + tl.getOffset(i) - tl.getOffset(event);
+		int from = event;
+		while (from < times.length && now - times[from] > lateLimit)
+			from++;
+		if (from == times.length) return false;
+		timeline = tl;
+		followClock = false;
+		currRepeat = from;
+		sessionStartTime = deadline - tl.getOffset(event);
+		deadlines = times;
+		boundaryDrifts = new int[tl.size()];
+		segmentEndTime = 0;
+		pauseStartTime = 0;
+		lastBoundaryGap = 0;
+		maxBoundaryGap = 0;
+		totalBoundaryGap = 0;
+		boundaryCount = 0;
+		running = true;
+		inSilence = true;
+		output.startSegment(currRepeat);
+		return true;
+	}
+
+	/** Stops the session with no callback, as it is stopped by the user. */
+	public void stop() {
+		running = false;
+		inSilence = false;
+	}
+
+	/** Ends the session, e.g., when its last event is rung or the output fails. */
+	public void end(final boolean completed) {
+		if (!running) return;
+		running = false;
+		inSilence = false;
+		currRepeat = 0;
+		listener.onSessionEnd(completed);
+	}
+
+	/**
+	 * Records the start of the current segment, which started at startTime
+	 * and is expected to end at endTime.
+	 */
+	public void segmentStarted(final long startTime, final long endTime) {
+		if (currRepeat > 0)
+			recordDrift(currRepeat - 1, startTime);
+		if (segmentEndTime > 0)
+			recordBoundaryGap((int) (startTime - segmentEndTime));
+		segmentEndTime = endTime;
+		listener.onSessionChanged();
+	}
+
+	/** Rings the event of the segment just ended, then starts the next segment or ends the session. */
+	public void segmentEnded() {
+		if (!running) return;
+		inSilence = false;
+		listener.onSessionChanged();
+		output.ring(currRepeat);
+		currRepeat++;
+		if (!running) return;
+		if (currRepeat < deadlines.length) {
+			inSilence = true;
+			output.startSegment(currRepeat);
+		} else {
+			recordDrift(currRepeat - 1, clock.now());
+			end(true);
+		}
+	}
+
+	public void pause() {
+		if (!running || pauseStartTime > 0) return;
+		pauseStartTime = clock.now();
+		listener.onSessionChanged();
+	}
+
+	/** Resumes the session, and moves the deadlines to come by the time paused. */
+	public void resume() {
+		if (pauseStartTime == 0) return;
+		final long paused = clock.now() - pauseStartTime;
+		segmentEndTime += paused;
+		// a new array, as the old one may be shared
+		final long[] times = deadlines.clone();
+		final int from = getRepeatAt(pauseStartTime);
+		if (from == 0)
+			sessionStartTime += paused;
+		for (int i = from; i < times.length; i++)
+			times[i] += paused;
+		deadlines = times;
+		pauseStartTime = 0;
+		listener.onSessionChanged();
+	}
+
+	private void recordDrift(final int event, final long time) {
+		final int drift = (int) (time - deadlines[event]);
+		boundaryDrifts[event] = drift;
+		listener.onDrift(event, drift);
+	}
+
+	private void recordBoundaryGap(final int gap) {
+		lastBoundaryGap = gap;
+		if (gap > maxBoundaryGap)
+			maxBoundaryGap = gap;
+		totalBoundaryGap += gap;
+		boundaryCount++;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	public Timeline getTimeline() {
+		return timeline;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/** Returns whether a segment is playing, i.e., not ringing. */
+	public boolean isInSilence() {
+		return inSilence;
+	}
+
+	public boolean isPaused() {
+		return pauseStartTime > 0;
+	}
+
+	public int getCurrRepeat() {
+		return currRepeat;
+	}
+
+	/** Returns the repeat at the time, following the deadlines if there are no boundary callbacks. */
+	public int getRepeatAt(final long time) {
+		if (!followClock || deadlines == null) return currRepeat;
+		int passed = currRepeat;
+		while (passed < deadlines.length - 1 && deadlines[passed] <= time)
+			passed++;
+		return passed;
+	}
+
+	public long getSessionStartTime() {
+		return sessionStartTime;
+	}
+
+	public long getDeadline(final int event) {
+		return deadlines[event];
+	}
+
+	/** Returns the deadlines. The array is never changed, so it can be shared. */
+	public long[] getDeadlines() {
+		return deadlines;
+	}
+
+	public long getSegmentEndTime() {
+		return segmentEndTime;
+	}
+
+	public long getPauseStartTime() {
+		return pauseStartTime;
+	}
+
+	/** Returns the drift of each boundary from its deadline, in milliseconds. */
+	public int[] getBoundaryDrifts() {
+		return boundaryDrifts == null ? new int[0] : boundaryDrifts.clone();
+	}
+
+	/** Returns the gap in milliseconds between the last two segments. */
+	public int getLastBoundaryGap() {
+		return lastBoundaryGap;
+	}
+
+	public int getMaxBoundaryGap() {
+		return maxBoundaryGap;
+	}
+
+	public long getTotalBoundaryGap() {
+		return totalBoundaryGap;
+	}
+
+	public int getBoundaryCount() {
+		return boundaryCount;
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The history of the sessions, in one file that records are only appended
+ * to. Each record has a fixed width, so any of them is read by its index
+ * with no scanning. A header of a fixed size keeps the count and running
+ * aggregates: the total time sat, the streak of days and the sessions by
+ * weekday, updated with each append. The header is written after the
+ * record, so a record not yet counted is never read.
+ * This class uses no Android API.
+ */
+public class SessionJournal {
+	public static final int HEADER_SIZE = 128;
+	public static final int RECORD_SIZE = 32;
+	public static final String CSV_HEADER = "start,date,planned_millis,actual_millis,paused_millis,"
+								+ "interval,repeat,pauses,stalls,completed,restored";
+	private static final int MAGIC = 0x50504d4a;
+	private static final int VERSION = 1;
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	private static final int FLAG_COMPLETED = 1;
+	private static final int FLAG_RESTORED = 2;
+	/** The records read in one go on export. */
+	private static final int EXPORT_BATCH = 256;
+	private final File file;
+
+	public SessionJournal(final File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Appends the record of a session, and updates the header. Returns false on a write error. */
+	public synchronized boolean append(final Entry entry) {
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final FileChannel channel = raf.getChannel();
+			final Header header = readHeader(channel);
+			final ByteBuffer rec = ByteBuffer.allocate(RECORD_SIZE);
+			entry.put(rec);
+			rec.flip();
+			channel.write(rec, HEADER_SIZE + (long) header.count * RECORD_SIZE);
+			// the record is on disk before it is counted
+			channel.force(false);
+			header.add(entry);
+			final ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(head);
+			head.flip();
+			channel.write(head, 0);
+			channel.force(false);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** Returns the header, or an empty one if there is no journal yet. */
+	public synchronized Header readHeader() {
+		if (!file.isFile()) return new Header();
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return readHeader(raf.getChannel());
+		} catch (IOException e) {
+			return new Header();
+		}
+	}
+
+	private Header readHeader(final FileChannel channel) throws IOException {
+		final ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(head, 0);
+		head.flip();
+		final Header header = new Header();
+		if (head.remaining() == HEADER_SIZE && head.getInt() == MAGIC && head.getInt() == VERSION)
+			header.get(head);
+		// a record past the count is the rest of a failed append, to be written over
+		return header;
+	}
+
+	/** Returns the last records, at most max, the newest first. */
+	public synchronized Entry[] readLast(final int max) {
+		if (!file.isFile()) return new Entry[0];
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final FileChannel channel = raf.getChannel();
+			final int count = readHeader(channel).count;
+			final int n = Math.min(max, count);
+			final ByteBuffer buf = ByteBuffer.allocate(n * RECORD_SIZE);
+			channel.read(buf, HEADER_SIZE + (long) (count - n) * RECORD_SIZE);
+			buf.flip();
+			final Entry[] entries = new Entry[buf.remaining() / RECORD_SIZE];
+			for (int i = entries.length - 1; i >= 0; i--)
+				entries[i] = Entry.get(buf);
+			return entries;
+		} catch (IOException e) {
+			return new Entry[0];
+		}
+	}
+
+	/** Writes all records as CSV, the oldest first, reading a batch at a time. */
+	public void exportCsv(final Writer out) throws IOException {
+		final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		out.write(CSV_HEADER + "\n");
+		if (!file.isFile()) return;
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final FileChannel channel = raf.getChannel();
+			final int count;
+			synchronized (this) {
+				count = readHeader(channel).count;
+			}
+			final ByteBuffer buf = ByteBuffer.allocate(EXPORT_BATCH * RECORD_SIZE);
+			for (int from = 0; from < count; from += EXPORT_BATCH) {
+				buf.clear();
+				buf.limit(Math.min(EXPORT_BATCH, count - from) * RECORD_SIZE);
+				channel.read(buf, HEADER_SIZE + (long) from * RECORD_SIZE);
+				buf.flip();
+				while (buf.remaining() >= RECORD_SIZE) {
+					final Entry e = Entry.get(buf);
+					// the local time of the session, where it was sat
+					final String date = dateFormat.format(new Date(e.start + e.zoneOffsetMinutes * 60000L));
+					out.write(e.start + "," + date + "," + e.plannedMillis + "," + e.actualMillis + "," + e.pausedMillis
+								+ "," + e.interval + "," + e.repeat + "," + e.pauses + "," + e.stalls
+								+ "," + (e.isCompleted() ? 1 : 0) + "," + (e.isRestored() ? 1 : 0) + "\n");
+				}
+			}
+		}
+	}
+
+	/** Returns the local day of the time, counted from 1970-01-01. */
+	public static int toDay(final long time, final int zoneOffsetMinutes) {
+		final long local = time + zoneOffsetMinutes * 60000L;
+		// rounded down, also before 1970
+		return (int) (local >= 0 ? local / DAY_MILLIS : (local + 1) / DAY_MILLIS - 1);
+	}
+
+	/** Returns the weekday of the local day, 0 being Sunday. */
+	public static int toWeekday(final int day) {
+		// 1970-01-01 was a Thursday
+		return ((day + 4) % 7 + 7) % 7;
+	}
+
+	// inner classes
+	/** The running aggregates of all records. */
+	public static class Header {
+		private int count;
+		private int completedCount;
+		private long totalSatMillis;
+		private long firstStart;
+		private int lastDay;
+		private int streak;
+		private int bestStreak;
+		private final int[] weekdayCounts = new int[7];
+
+		private void add(final Entry e) {
+			if (count == 0)
+				firstStart = e.start;
+			count++;
+			if (e.isCompleted())
+				completedCount++;
+			totalSatMillis += e.getSatMillis();
+			final int day = toDay(e.start, e.zoneOffsetMinutes);
+			weekdayCounts[toWeekday(day)]++;
+			// a day is in the streak if any session is on it; a clock set back keeps it
+			if (count == 1 || day > lastDay + 1) {
+				streak = 1;
+				lastDay = day;
+			} else if (day == lastDay + 1) {
+				streak++;
+				lastDay = day;
+			}
+			if (streak > bestStreak)
+				bestStreak = streak;
+		}
+
+		private void put(final ByteBuffer buf) {
+			buf.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(completedCount).putLong(totalSatMillis)
+					.putLong(firstStart).putInt(lastDay).putInt(streak).putInt(bestStreak);
+			for (final int c : weekdayCounts)
+				buf.putInt(c);
+			while (buf.hasRemaining())
+				buf.put((byte) 0);
+		}
+
+		private void get(final ByteBuffer buf) {
+			count = buf.getInt();
+			completedCount = buf.getInt();
+			totalSatMillis = buf.getLong();
+			firstStart = buf.getLong();
+			lastDay = buf.getInt();
+			streak = buf.getInt();
+			bestStreak = buf.getInt();
+			for (int i = 0; i < weekdayCounts.length; i++)
+				weekdayCounts[i] = buf.getInt();
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public int getCompletedCount() {
+			return completedCount;
+		}
+
+		/** Returns the time sat in all sessions, pauses not counted. */
+		public long getTotalSatMillis() {
+			return totalSatMillis;
+		}
+
+		public long getFirstStart() {
+			return firstStart;
+		}
+
+		/** Returns the days in a row up to the given local day, or 0 if the streak is broken by then. */
+		public int getStreak(final int today) {
+			return count > 0 && today - lastDay <= 1 ? streak : 0;
+		}
+
+		public int getBestStreak() {
+			return bestStreak;
+		}
+
+		/** Returns the sessions on the weekday, 0 being Sunday. */
+		public int getWeekdayCount(final int weekday) {
+			return weekdayCounts[weekday];
+		}
+	}
+
+	/** One session. The times are in milliseconds, the start on the wall clock. */
+	public static class Entry {
+		private final long start;
+		private final int zoneOffsetMinutes;
+		private final int plannedMillis;
+		private final int actualMillis;
+		private final int pausedMillis;
+		private final int interval;
+		private final int repeat;
+		private final int pauses;
+		private final int stalls;
+		private final int flags;
+
+		public Entry(final long start, final int zoneOffsetMinutes, final long plannedMillis, final long actualMillis,
+					final long pausedMillis, final int interval, final int repeat, final int pauses, final int stalls,
+					final boolean completed, final boolean restored) {
+			this(start, zoneOffsetMinutes, clamp(plannedMillis), clamp(actualMillis), clamp(pausedMillis),
+				interval, repeat, pauses, stalls, (completed ? FLAG_COMPLETED : 0) | (restored ? FLAG_RESTORED : 0));
+		}
+
+		private Entry(final long start, final int zoneOffsetMinutes, final int plannedMillis, final int actualMillis,
+					final int pausedMillis, final int interval, final int repeat, final int pauses, final int stalls,
+					final int flags) {
+			this.start = start;
+			this.zoneOffsetMinutes = zoneOffsetMinutes;
+			this.plannedMillis = plannedMillis;
+			this.actualMillis = actualMillis;
+			this.pausedMillis = pausedMillis;
+			this.interval = interval;
+			this.repeat = repeat;
+			this.pauses = pauses;
+			this.stalls = stalls;
+			this.flags = flags;
+		}
+
+		private static int clamp(final long millis) {
+			return (int) Math.max(0, Math.min(Integer.MAX_VALUE, millis));
+		}
+
+		private static int toShort(final int value) {
+			return Math.max(0, Math.min(Short.MAX_VALUE, value));
+		}
+
+		private void put(final ByteBuffer buf) {
+			buf.putLong(start).putInt(plannedMillis).putInt(actualMillis).putInt(pausedMillis)
+					.putShort((short) toShort(interval)).putShort((short) toShort(repeat))
+					.putShort((short) toShort(pauses)).putShort((short) toShort(stalls))
+					.putShort((short) zoneOffsetMinutes).put((byte) flags);
+			while (buf.position() < RECORD_SIZE)
+				buf.put((byte) 0);
+		}
+
+		private static Entry get(final ByteBuffer buf) {
+			final int pos = buf.position();
+			final long start = buf.getLong();
+			final int planned = buf.getInt();
+			final int actual = buf.getInt();
+			final int paused = buf.getInt();
+			final int intv = buf.getShort();
+			final int rept = buf.getShort();
+			final int pauses = buf.getShort();
+			final int stalls = buf.getShort();
+			final int zone = buf.getShort();
+			final int flags = buf.get();
+			buf.position(pos + RECORD_SIZE);
+			return new Entry(start, zone, planned, actual, paused, intv, rept, pauses, stalls, flags);
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public int getZoneOffsetMinutes() {
+			return zoneOffsetMinutes;
+		}
+
+		public int getPlannedMillis() {
+			return plannedMillis;
+		}
+
+		/** Returns the time from the start to the end, pauses included. */
+		public int getActualMillis() {
+			return actualMillis;
+		}
+
+		public int getPausedMillis() {
+			return pausedMillis;
+		}
+
+		/** Returns the time sat, the actual time less the pauses. */
+		public int getSatMillis() {
+			return Math.max(0, actualMillis - pausedMillis);
+		}
+
+		public int getInterval() {
+			return interval;
+		}
+
+		public int getRepeat() {
+			return repeat;
+		}
+
+		public int getPauses() {
+			return pauses;
+		}
+
+		public int getStalls() {
+			return stalls;
+		}
+
+		public boolean isCompleted() {
+			return (flags & FLAG_COMPLETED) != 0;
+		}
+
+		/** Returns whether the session was resumed after the process was killed. */
+		public boolean isRestored() {
+			return (flags & FLAG_RESTORED) != 0;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Mixes the sounds of a whole session into 16-bit mono PCM, chunk by chunk,
+ * so a session of hours can be rendered with a small buffer.
+ * This class uses no Android API.
+ */
+public class SessionRenderer {
+	private final int sampleRate;
+	private final ArrayList<Placement> placements;
+	private long totalFrames;
+	private long position;
+	private int[] mix;
+
+	public SessionRenderer(final int sampleRate) {
+		this.sampleRate = sampleRate;
+		placements = new ArrayList<>();
+		totalFrames = 0;
+		position = 0;
+		mix = new int[0];
+	}
+
+	/**
+	 * Lays out the sounds of the timeline: the preparation sound at the start,
+	 * the click at the end of each interval, the leading clicks, then the bell.
+	 * The bells are indexed by Timeline.BELL_*, and phrases are not rendered.
+	 */
+	public static SessionRenderer forTimeline(final Timeline tl, final int sampleRate, final short[] prepSound,
+							final boolean prepAtEnd, final short[] click, final short[][] bells) {
+		final SessionRenderer renderer = new SessionRenderer(sampleRate);
+		if (prepSound != null) {
+			final long prepEnd = renderer.toFrames(tl.getOffset(0));
+			renderer.add(prepAtEnd ? prepEnd - prepSound.length : 0, prepSound);
+		}
+		for (int i = 1; i < tl.size(); i++) {
+			final long boundary = renderer.toFrames(tl.getOffset(i));
+			renderer.add(boundary - click.length, click);
+			long pos = boundary;
+			for (int c = 0; c < tl.getClickCount(i); c++) {
+				renderer.add(pos, click);
+				pos += click.length;
+			}
+			final int bell = tl.getBell(i);
+			if (bell != Timeline.BELL_NONE && bells[bell] != null)
+				renderer.add(pos, bells[bell]);
+		}
+		renderer.setMinimumLength(renderer.toFrames(tl.getTotalMillis()));
+		return renderer;
+	}
+
+	public long toFrames(final long millis) {
+		return millis * sampleRate / 1000;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/** Places the sound so that it starts at the given frame. */
+	public void add(final long startFrame, final short[] sound) {
+		final long start = Math.max(0, startFrame);
+		placements.add(new Placement(start, sound));
+		totalFrames = Math.max(totalFrames, start + sound.length);
+	}
+
+	public void setMinimumLength(final long frames) {
+		totalFrames = Math.max(totalFrames, frames);
+	}
+
+	public long getTotalFrames() {
+		return totalFrames;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Renders the next frames into the buffer and returns how many were
+	 * rendered, or 0 at the end of the session.
+	 */
+	public int render(final short[] out, final int maxFrames) {
+		final int count = (int) Math.min(maxFrames, totalFrames - position);
+		if (count <= 0) return 0;
+		if (mix.length < count)
+			mix = new int[count];
+		else
+			Arrays.fill(mix, 0, count, 0);
+		final long end = position + count;
+		for (final Placement p : placements) {
+			final long pEnd = p.start + p.sound.length;
+			if (p.start >= end || pEnd <= position) continue;
+			final long from = Math.max(p.start, position);
+			final long to = Math.min(pEnd, end);
+			for (long f = from; f < to; f++)
+				mix[(int) (f - position)] += p.sound[(int) (f - p.start)];
+		}
+		for (int i = 0; i < count; i++) {
+			final int v = mix[i];
+			out[i] = (short) (v > Short.MAX_VALUE ? Short.MAX_VALUE : v < Short.MIN_VALUE ? Short.MIN_VALUE : v);
+		}
+		position = end;
+		return count;
+	}
+
+	// inner classes
+	private static class Placement {
+		private final long start;
+		private final short[] sound;
+		public Placement(final long startFrame, final short[] pcm) {
+			start = startFrame;
+			sound = pcm;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+/**
+ * The immutable state of a session at its last boundary. All times are
+ * on the monotonic clock, and the remaining times are computed from the
+ * time given by the caller, so reading a snapshot needs no player call.
+ * This class uses no Android API.
+ */
+public final class SessionSnapshot {
+	/** No session is running. */
+	public static final SessionSnapshot IDLE = new SessionSnapshot(false, true, 0, 0, null, 0, false);
+	/** The session is started but its clock is not set yet. */
+	public static final SessionSnapshot STARTING = new SessionSnapshot(true, true, 0, 0, null, 0, false);
+	private final boolean running;
+	private final boolean bell;
+	private final int repeat;
+	private final long sessionStart;
+	private final long[] deadlines;
+	private final long pausedAt;
+	private final boolean followClock;
+
+	/**
+	 * The deadlines are the times of the timeline events, the first being
+	 * the end of the preparation. The array is shared, so it must not be changed.
+	 * If followClock is set, the repeat is also advanced by the deadlines
+	 * passed, as in a rendered session that has no boundary callbacks.
+	 */
+	public SessionSnapshot(final boolean running, final boolean bell, final int repeat, final long sessionStart,
+							final long[] deadlines, final long pausedAt, final boolean followClock) {
+		this.running = running;
+		this.bell = bell;
+		this.repeat = repeat;
+		this.sessionStart = sessionStart;
+		this.deadlines = deadlines;
+		this.pausedAt = pausedAt;
+		this.followClock = followClock;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/** Returns whether the session is between segments, i.e., not in silence. */
+	public boolean isBell() {
+		return bell;
+	}
+
+	public boolean isPaused() {
+		return pausedAt > 0;
+	}
+
+	/** Returns whether the times are known. */
+	public boolean hasClock() {
+		return deadlines != null;
+	}
+
+	private long timeAt(final long now) {
+		return pausedAt > 0 ? pausedAt : now;
+	}
+
+	/** Returns the repeat at the time, 0 being the preparation. */
+	public int getRepeat(final long now) {
+		if (!followClock || deadlines == null) return repeat;
+		final long t = timeAt(now);
+		int passed = repeat;
+		while (passed < deadlines.length - 1 && deadlines[passed] <= t)
+			passed++;
+		return passed;
+	}
+
+	public long getSessionStart() {
+		return sessionStart;
+	}
+
+	public long getSessionEnd() {
+		return deadlines == null ? 0 : deadlines[deadlines.length - 1];
+	}
+
+	public long getSegmentStart(final long now) {
+		if (deadlines == null) return 0;
+		final int seg = Math.min(getRepeat(now), deadlines.length - 1);
+		return deadlines[seg] - getSegmentLength(seg);
+	}
+
+	public long getSegmentEnd(final long now) {
+		if (deadlines == null) return 0;
+		return deadlines[Math.min(getRepeat(now), deadlines.length - 1)];
+	}
+
+	/** Returns the length of the segment ending at the event, in milliseconds. */
+	private long getSegmentLength(final int event) {
+		return event == 0 ? deadlines[0] - sessionStart : deadlines[event] - deadlines[event - 1];
+	}
+
+	public long getSegmentDurationMillis(final long now) {
+		if (deadlines == null) return -1;
+		return getSegmentLength(Math.min(getRepeat(now), deadlines.length - 1));
+	}
+
+	/** Returns the time left to the end of the current segment, or -1 if unknown. */
+	public long getSegmentRemainingMillis(final long now) {
+		if (deadlines == null) return -1;
+		return Math.max(0, getSegmentEnd(now) - timeAt(now));
+	}
+
+	/** Returns the time left to the end of the session, or -1 if unknown. */
+	public long getSessionRemainingMillis(final long now) {
+		if (deadlines == null) return -1;
+		return Math.max(0, getSessionEnd() - timeAt(now));
+	}
+}
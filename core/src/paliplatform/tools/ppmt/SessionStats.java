@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The cost counters of one session: callbacks, UI refreshes, CPU time,
+ * time asleep, players created and bytes decoded, with the settings
+ * that may affect them. The start values are given at the start and
+ * the end values at the end, as counters of the whole process.
+ * This class uses no Android API.
+ */
+public class SessionStats {
+	public static final String HEADER = "start,millis,completed,callbacks,ui_refreshes,cpu_millis,asleep_millis,"
+								+ "players_created,decoded_bytes,overrun_millis,settings";
+	private final long wallStart;
+	private final long startElapsed;
+	private final long startUptime;
+	private final long startCpu;
+	private final int startPlayers;
+	private final long startDecoded;
+	private final String settings;
+	private final AtomicInteger uiRefreshes;
+	private int callbacks;
+	private boolean finished;
+	private boolean completed;
+	private long millis;
+	private long asleepMillis;
+	private long cpuMillis;
+	private int playersCreated;
+	private long decodedBytes;
+	private long overrunMillis;
+
+	/**
+	 * Starts counting. The elapsed time includes deep sleep and the uptime
+	 * does not, so their difference is the time the device was asleep.
+	 */
+	public SessionStats(final long wallStart, final long elapsed, final long uptime, final long cpu,
+						final int players, final long decoded, final String settings) {
+		this.wallStart = wallStart;
+		startElapsed = elapsed;
+		startUptime = uptime;
+		startCpu = cpu;
+		startPlayers = players;
+		startDecoded = decoded;
+		this.settings = settings;
+		uiRefreshes = new AtomicInteger();
+	}
+
+	public void countCallback() {
+		callbacks++;
+	}
+
+	/** Counts a refresh of the display. May be called on any thread. */
+	public void countUiRefresh() {
+		uiRefreshes.incrementAndGet();
+	}
+
+	/**
+	 * Ends counting. The overrun is how late the session ended after its
+	 * last deadline, meaningful only if completed.
+	 */
+	public void finish(final long elapsed, final long uptime, final long cpu, final int players,
+						final long decoded, final long overrun, final boolean isCompleted) {
+		if (finished) return;
+		finished = true;
+		completed = isCompleted;
+		millis = elapsed - startElapsed;
+		asleepMillis = Math.max(0, millis - (uptime - startUptime));
+		cpuMillis = cpu - startCpu;
+		playersCreated = players - startPlayers;
+		decodedBytes = decoded - startDecoded;
+		overrunMillis = overrun;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public int getCallbacks() {
+		return callbacks;
+	}
+
+	public int getUiRefreshes() {
+		return uiRefreshes.get();
+	}
+
+	public long getCpuMillis() {
+		return cpuMillis;
+	}
+
+	public long getAsleepMillis() {
+		return asleepMillis;
+	}
+
+	/** Returns the record of the session as one line, in the order of HEADER. */
+	public String toRecord() {
+		return wallStart + "," + millis + "," + (completed ? 1 : 0) + "," + callbacks + "," + uiRefreshes.get()
+				+ "," + cpuMillis + "," + asleepMillis + "," + playersCreated + "," + decodedBytes
+				+ "," + overrunMillis + "," + settings;
+	}
+}
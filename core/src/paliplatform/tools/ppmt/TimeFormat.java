@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+/**
+ * Formats the times shown by the timer. The times can also be formatted
+ * into a char buffer, so that a display refreshed every second does not
+ * allocate. This class uses no Android API.
+ */
+public final class TimeFormat {
+	/** The buffer length that any time fits in. */
+	public static final int MAX_LENGTH = 24;
+
+	private TimeFormat() {
+	}
+
+	/** Formats the time as mm:ss, or hh:mm:ss if withHour is set. */
+	public static String formatMillis(final long millis, final boolean withHour) {
+		final char[] buf = new char[MAX_LENGTH];
+		return new String(buf, 0, formatMillis(millis, withHour, buf));
+	}
+
+	/**
+	 * Formats the time into the buffer, as mm:ss or hh:mm:ss, and returns
+	 * the length. A negative time is taken as zero.
+	 */
+	public static int formatMillis(final long millis, final boolean withHour, final char[] buf) {
+		final long sec = Math.max(0, millis) / 1000;
+		int pos;
+		if (withHour) {
+			pos = putNumber(buf, 0, sec / 3600, 2);
+			buf[pos++] = ':';
+			pos = putNumber(buf, pos, (sec % 3600) / 60, 2);
+		} else {
+			pos = putNumber(buf, 0, sec / 60, 2);
+		}
+		buf[pos++] = ':';
+		return putNumber(buf, pos, sec % 60, 2);
+	}
+
+	/**
+	 * Puts the digits of the non-negative number at the position, padded
+	 * with zeros to minDigits, and returns the position after them.
+	 */
+	public static int putNumber(final char[] buf, final int pos, final long value, final int minDigits) {
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10)
+			digits++;
+		digits = Math.max(digits, minDigits);
+		long v = value;
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + v % 10);
+			v /= 10;
+		}
+		return pos + digits;
+	}
+}
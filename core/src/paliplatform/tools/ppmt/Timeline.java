@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+/**
+ * The immutable list of what happens at each boundary of a session.
+ * Event 0 is the end of the preparation, and event i is the end of
+ * the i-th interval. Each event has its offset from the session start,
+ * the number of leading clicks, and either a bell or a phrase.
+ * This class uses no Android API.
+ */
+public final class Timeline {
+	public static final int BELL_NONE = 0;
+	public static final int BELL_TINY = 1;
+	public static final int BELL_SMALL = 2;
+	public static final int BELL_LARGE = 3;
+	public static final int PHRASE_NONE = 0;
+	public static final int PHRASE_PREPARE = 1;
+	public static final int PHRASE_LOOP = 2;
+	public static final int PHRASE_LAST = 3;
+	private static final int ONE_MINUTE_MILLIS = 60000;
+	private final long[] offsets;
+	private final int[] clicks;
+	private final int[] bells;
+	private final int[] phrases;
+	private final int[] minutes;
+
+	private Timeline(final int size) {
+		offsets = new long[size];
+		clicks = new int[size];
+		bells = new int[size];
+		phrases = new int[size];
+		minutes = new int[size];
+	}
+
+	/** Compiles the settings of a session into its timeline. */
+	public static Timeline compile(final int interval, final int repeat, final String sound,
+							final String endingBell, final int clickOption, final int prepareMillis) {
+		return compileMillis((long) interval * ONE_MINUTE_MILLIS, repeat, sound, endingBell, clickOption, prepareMillis);
+	}
+
+	/** Compiles a timeline with the interval in milliseconds, e.g., for a short test session. */
+	public static Timeline compileMillis(final long intervalMillis, final int repeat, final String sound,
+							final String endingBell, final int clickOption, final int prepareMillis) {
+		final Timeline tl = new Timeline(repeat + 1);
+		final boolean isTts = sound.startsWith("tts");
+		final boolean hasEnding = !endingBell.equals("no");
+		final int soundBell = bellOf(sound);
+		final int endBell = bellOf(endingBell);
+		tl.offsets[0] = prepareMillis;
+		tl.phrases[0] = isTts ? PHRASE_PREPARE : PHRASE_NONE;
+		for (int i = 1; i <= repeat; i++) {
+			final boolean isLast = i == repeat;
+			tl.offsets[i] = prepareMillis + i * intervalMillis;
+			tl.minutes[i] = (int) (i * intervalMillis / ONE_MINUTE_MILLIS);
+			final int clickCount;
+			if (clickOption == 0) {
+				clickCount = 0;
+			} else if (clickOption == 1) {
+				clickCount = isLast ? 2 : 0;
+			} else {
+				final int rem = i % clickOption;
+				clickCount = rem == 0 ? clickOption - 1 : rem - 1;
+			}
+			tl.clicks[i] = clickCount;
+			if (isTts) {
+				if (isLast && hasEnding)
+					tl.bells[i] = endBell;
+				else
+					tl.phrases[i] = isLast ? PHRASE_LAST : PHRASE_LOOP;
+			} else {
+				tl.bells[i] = isLast && hasEnding ? endBell : soundBell;
+			}
+		}
+		return tl;
+	}
+
+	/** Returns the length of the preparation setting, in milliseconds. */
+	public static int getPrepareMillis(final String preparation) {
+		return preparation.equals("no") ? 3000 : preparation.equals("gong") ? 20000 : 10000;
+	}
+
+	/** Maps a sound setting to its bell, or BELL_NONE. */
+	public static int bellOf(final String snd) {
+		if ("tiny".equals(snd))
+			return BELL_TINY;
+		else if ("small".equals(snd))
+			return BELL_SMALL;
+		else if ("large".equals(snd))
+			return BELL_LARGE;
+		else
+			return BELL_NONE;
+	}
+
+	/** Returns the number of events, i.e., the repeat plus one. */
+	public int size() {
+		return offsets.length;
+	}
+
+	/** Returns the offset of the event from the session start, in milliseconds. */
+	public long getOffset(final int i) {
+		return offsets[i];
+	}
+
+	public long getTotalMillis() {
+		return offsets[offsets.length - 1];
+	}
+
+	public int getClickCount(final int i) {
+		return clicks[i];
+	}
+
+	public int getBell(final int i) {
+		return bells[i];
+	}
+
+	public int getPhrase(final int i) {
+		return phrases[i];
+	}
+
+	/** Returns the minutes passed at the event, used by the phrases. */
+	public int getMinutes(final int i) {
+		return minutes[i];
+	}
+}
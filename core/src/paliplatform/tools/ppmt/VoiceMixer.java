@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.util.Arrays;
+
+/**
+ * Mixes struck sounds into 16-bit mono PCM with a fixed number of voices.
+ * Overlapping strikes ring together, and when all voices are busy the
+ * oldest is dropped for the new one. A strike starts at the beginning
+ * of the next block rendered, and the frame it started at is kept, so
+ * the time it is heard can be found. Nothing is allocated after the
+ * mixer is made. This class uses no Android API.
+ */
+public class VoiceMixer {
+	private final short[][] voicePcm;
+	private final int[] voicePos;
+	private final long[] voiceAge;
+	private final int[] mix;
+	private long position;
+	private long strikeCount;
+	private boolean strikePending;
+	private long lastStartFrame;
+
+	/** Makes the mixer of the voice count, rendering at most the block size per call. */
+	public VoiceMixer(final int voices, final int maxBlockFrames) {
+		voicePcm = new short[voices][];
+		voicePos = new int[voices];
+		voiceAge = new long[voices];
+		mix = new int[maxBlockFrames];
+		position = 0;
+		strikeCount = 0;
+		lastStartFrame = -1;
+	}
+
+	/** Starts the sound on a free voice, or on the oldest if none is free. */
+	public synchronized void strike(final short[] pcm) {
+		int target = 0;
+		for (int i = 0; i < voicePcm.length; i++) {
+			if (voicePcm[i] == null) {
+				target = i;
+				break;
+			}
+			if (voiceAge[i] < voiceAge[target])
+				target = i;
+		}
+		voicePcm[target] = pcm;
+		voicePos[target] = 0;
+		voiceAge[target] = ++strikeCount;
+		strikePending = true;
+		lastStartFrame = -1;
+	}
+
+	/** Stops all voices. */
+	public synchronized void silence() {
+		Arrays.fill(voicePcm, null);
+		strikePending = false;
+	}
+
+	/**
+	 * Stops all voices and counts the frames from zero again, as done
+	 * when a new output is opened, whose head starts at zero.
+	 */
+	public synchronized void reset() {
+		silence();
+		position = 0;
+		lastStartFrame = -1;
+	}
+
+	/** Returns whether no voice is sounding. */
+	public synchronized boolean isIdle() {
+		for (final short[] pcm : voicePcm) {
+			if (pcm != null) return false;
+		}
+		return true;
+	}
+
+	/** Returns the number of frames rendered so far. */
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	/** Returns the frame the last strike started at, or -1 if it has not been rendered yet. */
+	public synchronized long getLastStartFrame() {
+		return lastStartFrame;
+	}
+
+	/** Renders the frames, silence included, and frees the voices played through. */
+	public synchronized void render(final short[] out, final int frames) {
+		Arrays.fill(mix, 0, frames, 0);
+		for (int v = 0; v < voicePcm.length; v++) {
+			final short[] pcm = voicePcm[v];
+			if (pcm == null) continue;
+			final int pos = voicePos[v];
+			final int count = Math.min(frames, pcm.length - pos);
+			for (int i = 0; i < count; i++)
+				mix[i] += pcm[pos + i];
+			if (pos + count >= pcm.length)
+				voicePcm[v] = null;
+			else
+				voicePos[v] = pos + count;
+		}
+		for (int i = 0; i < frames; i++) {
+			final int s = mix[i];
+			out[i] = (short) (s > Short.MAX_VALUE ? Short.MAX_VALUE : s < Short.MIN_VALUE ? Short.MIN_VALUE : s);
+		}
+		if (strikePending) {
+			lastStartFrame = position;
+			strikePending = false;
+		}
+		position += frames;
+	}
+
+	/** Resamples the sound linearly to another rate. */
+	public static short[] resample(final short[] pcm, final int fromRate, final int toRate) {
+		if (fromRate == toRate || pcm.length == 0) return pcm;
+		final double step = (double) fromRate / toRate;
+		final short[] out = new short[(int) (pcm.length / step)];
+		for (int i = 0; i < out.length; i++) {
+			final double pos = i * step;
+			final int j = (int) pos;
+			final double frac = pos - j;
+			final int next = Math.min(j + 1, pcm.length - 1);
+			out[i] = (short) (pcm[j] * (1 - frac) + pcm[next] * frac);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.desktop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Loads the sounds of the app for the mixer, as 16-bit mono PCM at its rate.
+ * The sounds are read from a directory, e.g., res/raw, as .wav files or any
+ * other type the installed audio readers know. The JDK cannot read Ogg
+ * Vorbis by itself, so a sound that cannot be read is synthesized instead.
+ */
+public class DesktopSounds {
+	private final File dir;
+
+	public DesktopSounds(final File dir) {
+		this.dir = dir;
+	}
+
+	/** Returns the sound by its resource name, e.g., bell_small, or null if not found. */
+	public short[] load(final String name) {
+		for (final String ext : new String[] { ".wav", ".ogg" }) {
+			final File file = new File(dir, name + ext);
+			if (!file.exists()) continue;
+			try {
+				return read(file);
+			} catch (IOException | UnsupportedAudioFileException | IllegalArgumentException e) {
+			}
+		}
+		return null;
+	}
+
+	/** Returns the sound by its resource name, or a synthesized one. */
+	public short[] loadOrSynthesize(final String name) {
+		final short[] pcm = load(name);
+		if (pcm != null) return pcm;
+		switch (name) {
+			case "click": return tone(1800, 30, 0.4);
+			case "bell_tiny": return bell(1320, 2500);
+			case "bell_small": return bell(880, 4000);
+			case "bell_large": return bell(440, 7000);
+			case "prepare_gong": return bell(220, 12000);
+			default: return bell(660, 3000);
+		}
+	}
+
+	private static short[] read(final File file) throws IOException, UnsupportedAudioFileException {
+		try (final AudioInputStream in = AudioSystem.getAudioInputStream(file)) {
+			final AudioFormat src = in.getFormat();
+			final AudioFormat pcmFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, src.getSampleRate(),
+								16, src.getChannels(), src.getChannels() * 2, src.getSampleRate(), false);
+			try (final AudioInputStream pcmIn = AudioSystem.getAudioInputStream(pcmFormat, in)) {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final byte[] buf = new byte[8192];
+				int n;
+				while ((n = pcmIn.read(buf)) > 0)
+					bytes.write(buf, 0, n);
+				return resample(toMono(bytes.toByteArray(), src.getChannels()), src.getSampleRate());
+			}
+		}
+	}
+
+	private static short[] toMono(final byte[] data, final int channels) {
+		final int frames = data.length / 2 / channels;
+		final short[] pcm = new short[frames];
+		for (int f = 0; f < frames; f++) {
+			int sum = 0;
+			for (int c = 0; c < channels; c++) {
+				final int i = (f * channels + c) * 2;
+				sum += (short) ((data[i] & 0xff) | (data[i + 1] << 8));
+			}
+			pcm[f] = (short) (sum / channels);
+		}
+		return pcm;
+	}
+
+	/** Resamples linearly to the rate of the mixer. */
+	private static short[] resample(final short[] pcm, final float rate) {
+		if (rate == LineMixer.SAMPLE_RATE || pcm.length == 0) return pcm;
+		final double step = rate / LineMixer.SAMPLE_RATE;
+		final short[] out = new short[(int) (pcm.length / step)];
+		for (int i = 0; i < out.length; i++) {
+			final double pos = i * step;
+			final int j = (int) pos;
+			final double frac = pos - j;
+			final int next = Math.min(j + 1, pcm.length - 1);
+			out[i] = (short) (pcm[j] * (1 - frac) + pcm[next] * frac);
+		}
+		return out;
+	}
+
+	/** Synthesizes a struck bell: a few inharmonic partials dying away. */
+	private static short[] bell(final double freq, final int millis) {
+		final double[] ratios = { 1.0, 2.0, 2.4, 3.0, 4.2 };
+		final double[] levels = { 0.5, 0.25, 0.15, 0.1, 0.05 };
+		final int frames = LineMixer.SAMPLE_RATE * millis / 1000;
+		final short[] pcm = new short[frames];
+		for (int f = 0; f < frames; f++) {
+			final double t = (double) f / LineMixer.SAMPLE_RATE;
+			double v = 0;
+			for (int p = 0; p < ratios.length; p++)
+				v += levels[p] * Math.exp(-t * (1 + p) * 3000.0 / millis) * Math.sin(2 * Math.PI * freq * ratios[p] * t);
+			pcm[f] = (short) (v * 0.5 * Short.MAX_VALUE);
+		}
+		return pcm;
+	}
+
+	private static short[] tone(final double freq, final int millis, final double level) {
+		final int frames = LineMixer.SAMPLE_RATE * millis / 1000;
+		final short[] pcm = new short[frames];
+		for (int f = 0; f < frames; f++) {
+			final double t = (double) f / LineMixer.SAMPLE_RATE;
+			pcm[f] = (short) (level * (1 - (double) f / frames) * Math.sin(2 * Math.PI * freq * t) * Short.MAX_VALUE);
+		}
+		return pcm;
+	}
+}
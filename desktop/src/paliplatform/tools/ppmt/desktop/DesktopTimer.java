@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.desktop;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import paliplatform.tools.ppmt.SessionEngine;
+import paliplatform.tools.ppmt.TimeFormat;
+import paliplatform.tools.ppmt.Timeline;
+
+/**
+ * The meditation timer on a desktop JVM, on the same session engine as
+ * the app. The silence is streamed through one output line, and the
+ * clicks and bells are mixed into it at their frames. A voice phrase is
+ * printed, as there is no speech engine here.
+ * <p>
+ * Usage: DesktopTimer interval repeat sound ending-bell click preparation
+ * [--sounds res/raw] [--interval-ms millis]<br>
+ * with the same values as the settings of the app, e.g., 15 2 tiny small 1 click.
+ */
+public class DesktopTimer implements SessionEngine.Output, SessionEngine.Listener, LineMixer.Listener {
+	private static final int BLOCK_MILLIS = 10;
+	private static final String[] BELL_NAMES = { null, "bell_tiny", "bell_small", "bell_large" };
+	private final ExecutorService scheduler;
+	private final LineMixer mixer;
+	private final SessionEngine engine;
+	private final CountDownLatch done;
+	private final String preparation;
+	private final short[] click;
+	private final short[][] bells;
+	private final short[] prepSound;
+	private long streamStartTime;
+
+	public DesktopTimer(final DesktopSounds sounds, final String preparation) {
+		this.preparation = preparation;
+		scheduler = Executors.newSingleThreadExecutor();
+		mixer = new LineMixer(BLOCK_MILLIS, this);
+		final long baseNanos = System.nanoTime();
+		engine = new SessionEngine(new SessionEngine.Clock() {
+			@Override
+			public long now() {
+				return (System.nanoTime() - baseNanos) / 1000000;
+			}
+		}, this, this);
+		done = new CountDownLatch(1);
+		click = sounds.loadOrSynthesize("click");
+		bells = new short[BELL_NAMES.length][];
+		for (int i = 1; i < BELL_NAMES.length; i++)
+			bells[i] = sounds.loadOrSynthesize(BELL_NAMES[i]);
+		if (preparation.equals("gong"))
+			prepSound = sounds.loadOrSynthesize("prepare_gong");
+		else if (preparation.equals("melody"))
+			prepSound = sounds.loadOrSynthesize("prepare_melody");
+		else
+			prepSound = null;
+	}
+
+	public static void main(final String[] args) throws InterruptedException {
+		final List<String> settings = new ArrayList<>();
+		String soundDir = "res/raw";
+		long intervalMillis = -1;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--sounds") && i + 1 < args.length)
+				soundDir = args[++i];
+			else if (args[i].equals("--interval-ms") && i + 1 < args.length)
+				intervalMillis = Long.parseLong(args[++i]);
+			else
+				settings.add(args[i]);
+		}
+		if (settings.size() < 6) {
+			System.err.println("Usage: DesktopTimer interval repeat sound ending-bell click preparation"
+								+ " [--sounds dir] [--interval-ms millis]");
+			System.exit(2);
+		}
+		final int interval = Integer.parseInt(settings.get(0));
+		final int repeat = Integer.parseInt(settings.get(1));
+		final String preparation = settings.get(5);
+		if (intervalMillis < 0)
+			intervalMillis = interval * 60000L;
+		final Timeline tl = Timeline.compileMillis(intervalMillis, repeat, settings.get(2), settings.get(3),
+								Integer.parseInt(settings.get(4)), Timeline.getPrepareMillis(preparation));
+		final DesktopTimer timer = new DesktopTimer(new DesktopSounds(new File(soundDir)), preparation);
+		timer.run(tl);
+	}
+
+	private void run(final Timeline tl) throws InterruptedException {
+		if (!mixer.open())
+			System.out.println("No audio output, running silently.");
+		System.out.println("Session of " + TimeFormat.formatMillis(tl.getTotalMillis(), true));
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				engine.start(tl, false);
+			}
+		});
+		done.await();
+		// let the last bell ring out
+		Thread.sleep(bells[Timeline.BELL_LARGE].length * 1000L / LineMixer.SAMPLE_RATE);
+		mixer.stop();
+		scheduler.shutdown();
+	}
+
+	@Override
+	public void startSegment(final int event) {
+		final long now = engine.getClock().now();
+		if (event == 0) {
+			streamStartTime = now;
+			mixer.start();
+			if (prepSound != null)
+				mixer.play(prepSound, 0);
+		}
+		final long deadline = engine.getDeadline(event);
+		final long marker = mixer.toFrames(deadline - streamStartTime);
+		// the click at the end of the silence, as in the silence tracks
+		if (event > 0 || preparation.equals("click"))
+			mixer.play(click, marker - click.length);
+		mixer.setMarker(marker);
+		engine.segmentStarted(now, deadline);
+	}
+
+	@Override
+	public void ring(final int event) {
+		final Timeline tl = engine.getTimeline();
+		long frame = mixer.getFramesWritten();
+		for (int i = 0; i < tl.getClickCount(event); i++) {
+			mixer.play(click, frame);
+			frame += click.length;
+		}
+		if (tl.getPhrase(event) != Timeline.PHRASE_NONE)
+			System.out.println("(phrase after " + tl.getMinutes(event) + " minutes)");
+		else if (tl.getBell(event) != Timeline.BELL_NONE)
+			mixer.play(bells[tl.getBell(event)], frame);
+		final long remaining = engine.getDeadline(tl.size() - 1) - engine.getClock().now();
+		System.out.println((event == 0 ? "Start" : "Repeat " + event + "/" + (tl.size() - 1))
+							+ ", remaining " + TimeFormat.formatMillis(Math.max(0, remaining), true));
+	}
+
+	@Override
+	public void onMarkerReached() {
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				engine.segmentEnded();
+			}
+		});
+	}
+
+	@Override
+	public void onSessionChanged() {
+	}
+
+	@Override
+	public void onDrift(final int event, final int drift) {
+	}
+
+	@Override
+	public void onSessionEnd(final boolean completed) {
+		System.out.println(completed ? "Session completed." : "Session ended.");
+		done.countDown();
+	}
+}
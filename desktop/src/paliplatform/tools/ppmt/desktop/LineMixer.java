@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.desktop;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Mixes all sounds into one output line, 16-bit mono. A writer thread
+ * writes small blocks back to back, silence included, so the line is
+ * never idle and a sound is heard one buffer after it is mixed in.
+ * Sounds are placed at frames of the output, and the frame count is
+ * the clock of the session. If there is no audio device, the blocks
+ * are paced by the system clock instead, and nothing is heard.
+ */
+public class LineMixer {
+	public static final int SAMPLE_RATE = 44100;
+	private static final int MAX_VOICES = 16;
+	/** The line buffer holds this many blocks. */
+	private static final int BUFFER_BLOCKS = 4;
+	private final int blockFrames;
+	private final short[][] voicePcm;
+	private final long[] voiceStart;
+	private final Listener listener;
+	private SourceDataLine line;
+	private volatile boolean running;
+	private Thread writer;
+	private long framesWritten;
+	private long markerFrame;
+
+	public interface Listener {
+		/** Called on the writer thread when the marker frame has been written. */
+		void onMarkerReached();
+	}
+
+	public LineMixer(final int blockMillis, final Listener listener) {
+		this.listener = listener;
+		blockFrames = SAMPLE_RATE * blockMillis / 1000;
+		voicePcm = new short[MAX_VOICES][];
+		voiceStart = new long[MAX_VOICES];
+		markerFrame = -1;
+	}
+
+	/** Opens the output line, and returns false if there is none. */
+	public boolean open() {
+		final AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+		try {
+			line = AudioSystem.getSourceDataLine(format);
+			line.open(format, blockFrames * 2 * BUFFER_BLOCKS);
+			line.start();
+			return true;
+		} catch (LineUnavailableException | IllegalArgumentException | SecurityException e) {
+			line = null;
+			return false;
+		}
+	}
+
+	public void start() {
+		if (running) return;
+		running = true;
+		writer = new Thread(null, doWriting, "line-mixer");
+		writer.setPriority(Thread.MAX_PRIORITY);
+		writer.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (writer != null) {
+			try {
+				writer.join(1000);
+			} catch (InterruptedException e) {
+			}
+			writer = null;
+		}
+		if (line != null) {
+			line.drain();
+			line.close();
+			line = null;
+		}
+	}
+
+	public long toFrames(final long millis) {
+		return millis * SAMPLE_RATE / 1000;
+	}
+
+	public synchronized long getFramesWritten() {
+		return framesWritten;
+	}
+
+	/** Sets the frame to call back at, or -1 for none. */
+	public synchronized void setMarker(final long frame) {
+		markerFrame = frame;
+	}
+
+	/** Plays the sound from the frame, or as soon as possible if it is past. Returns false if all voices are busy. */
+	public synchronized boolean play(final short[] pcm, final long startFrame) {
+		for (int i = 0; i < MAX_VOICES; i++) {
+			if (voicePcm[i] == null) {
+				voicePcm[i] = pcm;
+				voiceStart[i] = Math.max(startFrame, framesWritten);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Mixes the voices into the block starting at the frame, and frees those that are over. */
+	private synchronized void mix(final int[] acc, final long blockStart) {
+		final long blockEnd = blockStart + acc.length;
+		for (int i = 0; i < MAX_VOICES; i++) {
+			final short[] pcm = voicePcm[i];
+			if (pcm == null) continue;
+			final long start = voiceStart[i];
+			final long end = start + pcm.length;
+			final long from = Math.max(start, blockStart);
+			final long to = Math.min(end, blockEnd);
+			for (long f = from; f < to; f++)
+				acc[(int) (f - blockStart)] += pcm[(int) (f - start)];
+			if (end <= blockEnd)
+				voicePcm[i] = null;
+		}
+	}
+
+	private Runnable doWriting = new Runnable() {
+		@Override
+		public void run() {
+			final int[] acc = new int[blockFrames];
+			final byte[] out = new byte[blockFrames * 2];
+			final long startNanos = System.nanoTime();
+			while (running) {
+				final long blockStart = getFramesWritten();
+				Arrays.fill(acc, 0);
+				mix(acc, blockStart);
+				for (int i = 0; i < blockFrames; i++) {
+					final int v = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, acc[i]));
+					out[i * 2] = (byte) v;
+					out[i * 2 + 1] = (byte) (v >> 8);
+				}
+				if (line != null) {
+					line.write(out, 0, out.length);
+				} else {
+					// no device, keep the pace of one
+					final long due = startNanos + (blockStart + blockFrames - blockFrames * BUFFER_BLOCKS) * 1000000000L / SAMPLE_RATE;
+					final long wait = (due - System.nanoTime()) / 1000000;
+					if (wait > 0) {
+						try {
+							Thread.sleep(wait);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+				boolean reached = false;
+				synchronized (LineMixer.this) {
+					framesWritten += blockFrames;
+					if (markerFrame >= 0 && framesWritten >= markerFrame) {
+						markerFrame = -1;
+						reached = true;
+					}
+				}
+				if (reached)
+					listener.onMarkerReached();
+			}
+		}
+	};
+}
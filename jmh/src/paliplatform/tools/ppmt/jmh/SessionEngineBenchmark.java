@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import paliplatform.tools.ppmt.SessionEngine;
+import paliplatform.tools.ppmt.Timeline;
+
+/**
+ * The decision made at each boundary, formerly PlayerService.alarm():
+ * ring the event, then start the next segment or end the session. One
+ * operation is a whole session on an output that does nothing, so the
+ * cost per boundary is the time divided by the repeat plus one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionEngineBenchmark {
+	@Param({ "1", "12" })
+	public int repeat;
+
+	private Timeline timeline;
+	private SessionEngine engine;
+	private Blackhole blackhole;
+	private long time;
+
+	@Setup
+	public void setup(final Blackhole bh) {
+		blackhole = bh;
+		timeline = Timeline.compile(15, repeat, "tiny", "small", 3, Timeline.getPrepareMillis("click"));
+		engine = new SessionEngine(clock, output, listener);
+	}
+
+	@Benchmark
+	public int session() {
+		engine.start(timeline, false);
+		while (engine.isRunning())
+			engine.segmentEnded();
+		return engine.getBoundaryCount();
+	}
+
+	private final SessionEngine.Clock clock = new SessionEngine.Clock() {
+		@Override
+		public long now() {
+			return time;
+		}
+	};
+
+	private final SessionEngine.Output output = new SessionEngine.Output() {
+		@Override
+		public void startSegment(final int event) {
+			// every segment ends right on its deadline
+			time = engine.getDeadline(event);
+			engine.segmentStarted(time - 1, time);
+		}
+		@Override
+		public void ring(final int event) {
+			blackhole.consume(timeline.getClickCount(event));
+			blackhole.consume(timeline.getBell(event));
+		}
+	};
+
+	private final SessionEngine.Listener listener = new SessionEngine.Listener() {
+		@Override
+		public void onSessionChanged() {
+		}
+		@Override
+		public void onDrift(final int event, final int drift) {
+			blackhole.consume(drift);
+		}
+		@Override
+		public void onSessionEnd(final boolean completed) {
+		}
+	};
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.jmh;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The summary lookup of SettingsFragment.updateSummary(), for the click
+ * setting. Resources.getStringArray() returns a new array at each call,
+ * which is stood in for by a copy, then the value is searched in a list.
+ * The map lookup is the same with the summaries computed beforehand.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SummaryLookupBenchmark {
+	private static final String[] CLICK_ENTRIES = { "One click each", "All one but the last three",
+						"2 clicks at most", "3 clicks at most", "4 clicks at most", "5 clicks at most", "6 clicks at most" };
+	private static final String[] CLICK_VALUES = { "0", "1", "2", "3", "4", "5", "6" };
+	private Map<String, String> summaries;
+	private int next;
+
+	@Setup
+	public void setup() {
+		summaries = new HashMap<>();
+		for (int i = 0; i < CLICK_VALUES.length; i++)
+			summaries.put(CLICK_VALUES[i], CLICK_ENTRIES[i]);
+	}
+
+	private String nextValue() {
+		next = (next + 1) % CLICK_VALUES.length;
+		return CLICK_VALUES[next];
+	}
+
+	@Benchmark
+	public String arrayLookup() {
+		final String[] clickEntries = CLICK_ENTRIES.clone();
+		final List<String> clickValues = Arrays.asList(CLICK_VALUES.clone());
+		final int ind = clickValues.indexOf(nextValue());
+		return clickEntries[ind];
+	}
+
+	@Benchmark
+	public String mapLookup() {
+		return summaries.get(nextValue());
+	}
+}
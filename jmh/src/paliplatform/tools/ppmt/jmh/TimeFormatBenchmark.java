@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import paliplatform.tools.ppmt.TimeFormat;
+
+/**
+ * The time formatting done at each tick of the timer display, which
+ * formats the remaining time, the elapsed time and the total.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TimeFormatBenchmark {
+	private final char[] buf = new char[TimeFormat.MAX_LENGTH];
+	private long millis = 5400000;
+
+	@Benchmark
+	public String remaining() {
+		millis -= 1000;
+		if (millis < 0) millis = 5400000;
+		return TimeFormat.formatMillis(millis, false);
+	}
+
+	@Benchmark
+	public String withHour() {
+		millis -= 1000;
+		if (millis < 0) millis = 5400000;
+		return TimeFormat.formatMillis(millis, true);
+	}
+
+	/** As the timer view formats, into its own buffer. */
+	@Benchmark
+	public int intoBuffer() {
+		millis -= 1000;
+		if (millis < 0) millis = 5400000;
+		return TimeFormat.formatMillis(millis, true, buf);
+	}
+}
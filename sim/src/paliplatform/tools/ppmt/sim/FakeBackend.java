@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import paliplatform.tools.ppmt.SessionEngine;
+import paliplatform.tools.ppmt.Timeline;
+
+/**
+ * The audio output of a simulated session. Each segment is sized to end on
+ * its deadline, as the stream backend does, and ends late by the jitter
+ * given for the event. The clicks are a fixed length apart, and the bell
+ * or phrase follows the last click. Everything heard is written to the trace.
+ */
+public class FakeBackend implements SessionEngine.Output, SessionEngine.Listener {
+	public static final int CLICK_MILLIS = 1000;
+	private final VirtualClock clock;
+	private final int[] jitters;
+	private final List<Entry> trace = new ArrayList<>();
+	private SessionEngine engine;
+	private VirtualClock.Task pendingEnd;
+	private long remainingMillis;
+	private int changes;
+	private int ends;
+
+	/** Creates the backend, with the lateness of each event in milliseconds. */
+	public FakeBackend(final VirtualClock clock, final int[] jitters) {
+		this.clock = clock;
+		this.jitters = jitters;
+	}
+
+	public void setEngine(final SessionEngine engine) {
+		this.engine = engine;
+	}
+
+	@Override
+	public void startSegment(final int event) {
+		final long now = clock.now();
+		final long end = engine.getDeadline(event) + jitters[event];
+		trace.add(new Entry(now, event, Entry.SEGMENT, 0));
+		engine.segmentStarted(now, engine.getDeadline(event));
+		pendingEnd = clock.schedule(end, segmentEnd);
+	}
+
+	private final Runnable segmentEnd = new Runnable() {
+		@Override
+		public void run() {
+			pendingEnd = null;
+			engine.segmentEnded();
+		}
+	};
+
+	@Override
+	public void ring(final int event) {
+		final Timeline tl = engine.getTimeline();
+		long time = clock.now();
+		trace.add(new Entry(time, event, Entry.RING, 0));
+		for (int i = 0; i < tl.getClickCount(event); i++) {
+			trace.add(new Entry(time, event, Entry.CLICK, i));
+			time += CLICK_MILLIS;
+		}
+		if (tl.getPhrase(event) != Timeline.PHRASE_NONE)
+			trace.add(new Entry(time, event, Entry.PHRASE, tl.getPhrase(event)));
+		else if (tl.getBell(event) != Timeline.BELL_NONE)
+			trace.add(new Entry(time, event, Entry.BELL, tl.getBell(event)));
+	}
+
+	/** Pauses the segment playing, keeping the time left. */
+	public void pause() {
+		if (pendingEnd == null) return;
+		pendingEnd.cancel();
+		remainingMillis = pendingEnd.getTime() - clock.now();
+		pendingEnd = null;
+		engine.pause();
+	}
+
+	public void resume() {
+		if (!engine.isPaused()) return;
+		engine.resume();
+		pendingEnd = clock.schedule(clock.now() + remainingMillis, segmentEnd);
+	}
+
+	@Override
+	public void onSessionChanged() {
+		changes++;
+	}
+
+	@Override
+	public void onDrift(final int event, final int drift) {
+		trace.add(new Entry(clock.now(), event, Entry.DRIFT, drift));
+	}
+
+	@Override
+	public void onSessionEnd(final boolean completed) {
+		ends++;
+		trace.add(new Entry(clock.now(), -1, Entry.END, completed ? 1 : 0));
+	}
+
+	public List<Entry> getTrace() {
+		return trace;
+	}
+
+	public int getChangeCount() {
+		return changes;
+	}
+
+	public int getEndCount() {
+		return ends;
+	}
+
+	// inner classes
+	public static final class Entry {
+		public static final int SEGMENT = 0;
+		public static final int RING = 1;
+		public static final int CLICK = 2;
+		public static final int BELL = 3;
+		public static final int PHRASE = 4;
+		public static final int DRIFT = 5;
+		public static final int END = 6;
+		private static final String[] NAMES = { "segment", "ring", "click", "bell", "phrase", "drift", "end" };
+		public final long time;
+		public final int event;
+		public final int kind;
+		public final int value;
+		public Entry(final long time, final int event, final int kind, final int value) {
+			this.time = time;
+			this.event = event;
+			this.kind = kind;
+			this.value = value;
+		}
+		@Override
+		public String toString() {
+			return String.format("%10d %3d %-8s %d", time, event, NAMES[kind], value);
+		}
+	}
+}
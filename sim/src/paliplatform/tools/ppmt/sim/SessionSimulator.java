@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.sim;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import paliplatform.tools.ppmt.SessionEngine;
+import paliplatform.tools.ppmt.Timeline;
+
+/**
+ * Runs every combination of the settings through the session engine on a
+ * virtual clock, and checks each trace against the one expected from the
+ * settings alone. Each combination is run as is, with the events late by
+ * a few milliseconds, and with a pause in the first interval.
+ * <p>
+ * Usage: SessionSimulator [strings.xml]<br>
+ * or: SessionSimulator --trace interval repeat sound ending click preparation [jitter|pause]
+ */
+public class SessionSimulator {
+	/** As PlayerService.MAX_INTERVAL, the interval is free in the settings. */
+	private static final int MAX_INTERVAL = 180;
+	private static final int ONE_MINUTE_MILLIS = 60000;
+	private static final long START_TIME = 1000000;
+	private static final int MAX_JITTER_MILLIS = 40;
+	private static final int PAUSE_MILLIS = 90000;
+	private static final String[] VARIANTS = { "plain", "jitter", "pause" };
+	private static final int MAX_REPORTED = 10;
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("--trace")) {
+			printTrace(args);
+			return;
+		}
+		final Map<String, String[]> arrays = readArrays(args.length > 0 ? args[0] : "res/values/strings.xml");
+		final String[] repeats = arrays.get("repeat_times_values");
+		final String[] sounds = arrays.get("sound_values");
+		final String[] endings = arrays.get("ending_bell_values");
+		final String[] clicks = arrays.get("click_values");
+		final String[] preps = arrays.get("preparation_values");
+		final long startNanos = System.nanoTime();
+		final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final List<Future<Result>> futures = new ArrayList<>();
+		for (int intv = 1; intv <= MAX_INTERVAL; intv++) {
+			final int interval = intv;
+			futures.add(executor.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					final Result result = new Result();
+					for (final String rep : repeats)
+						for (final String snd : sounds)
+							for (final String end : endings)
+								for (final String clk : clicks)
+									for (final String prep : preps)
+										for (final String variant : VARIANTS)
+											runSession(new Settings(interval, Integer.parseInt(rep), snd, end,
+															Integer.parseInt(clk), prep, variant), result);
+					return result;
+				}
+			}));
+		}
+		final Result total = new Result();
+		for (final Future<Result> f : futures)
+			total.add(f.get());
+		executor.shutdown();
+		final long millis = (System.nanoTime() - startNanos) / 1000000;
+		System.out.println("sessions: " + total.sessions + ", events: " + total.events
+							+ ", failures: " + total.failures + ", max drift: " + total.maxDrift
+							+ " ms, time: " + millis + " ms");
+		for (final String f : total.reported)
+			System.out.println("FAIL " + f);
+		if (total.failures > 0)
+			System.exit(1);
+	}
+
+	/** Runs one session and checks it, adding the outcome to the result. */
+	private static void runSession(final Settings s, final Result result) {
+		final VirtualClock clock = new VirtualClock(START_TIME);
+		final FakeBackend backend = runOn(clock, s);
+		final String error = check(s, backend);
+		result.sessions++;
+		result.events += s.repeat + 1;
+		for (final FakeBackend.Entry e : backend.getTrace()) {
+			if (e.kind == FakeBackend.Entry.DRIFT && Math.abs(e.value) > result.maxDrift)
+				result.maxDrift = Math.abs(e.value);
+		}
+		if (error != null) {
+			result.failures++;
+			if (result.reported.size() < MAX_REPORTED)
+				result.reported.add(s + ": " + error);
+		}
+	}
+
+	private static FakeBackend runOn(final VirtualClock clock, final Settings s) {
+		final FakeBackend backend = new FakeBackend(clock, s.jitters);
+		final SessionEngine engine = new SessionEngine(clock, backend, backend);
+		backend.setEngine(engine);
+		final Timeline tl = Timeline.compile(s.interval, s.repeat, s.sound, s.ending, s.click, s.prepareMillis);
+		engine.start(tl, false);
+		if (s.pauseAt > 0) {
+			clock.schedule(s.pauseAt, new Runnable() {
+				@Override
+				public void run() {
+					backend.pause();
+				}
+			});
+			clock.schedule(s.pauseAt + PAUSE_MILLIS, new Runnable() {
+				@Override
+				public void run() {
+					backend.resume();
+				}
+			});
+		}
+		// a session never needs more than a few tasks per event
+		clock.runAll(4 * (s.repeat + 3));
+		return backend;
+	}
+
+	/** Returns what is wrong with the trace, or null. */
+	private static String check(final Settings s, final FakeBackend backend) {
+		final List<FakeBackend.Entry> expected = expectedTrace(s);
+		final List<FakeBackend.Entry> actual = backend.getTrace();
+		for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+			final String exp = i < expected.size() ? expected.get(i).toString() : "(none)";
+			final String act = i < actual.size() ? actual.get(i).toString() : "(none)";
+			if (!exp.equals(act))
+				return "entry " + i + " expected [" + exp + "] but was [" + act + "]";
+		}
+		if (backend.getEndCount() != 1)
+			return "ended " + backend.getEndCount() + " times";
+		// the audio of an event is over before the next event
+		long lastAudio = 0;
+		for (final FakeBackend.Entry e : actual) {
+			if (e.kind == FakeBackend.Entry.RING && e.time < lastAudio)
+				return "event " + e.event + " overlaps the previous one";
+			if (e.kind == FakeBackend.Entry.CLICK || e.kind == FakeBackend.Entry.BELL || e.kind == FakeBackend.Entry.PHRASE)
+				lastAudio = e.time;
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the trace from the settings alone, following the rules of the
+	 * settings screen rather than the Timeline, so one is checked by the other.
+	 */
+	private static List<FakeBackend.Entry> expectedTrace(final Settings s) {
+		final List<FakeBackend.Entry> trace = new ArrayList<>();
+		trace.add(new FakeBackend.Entry(START_TIME, 0, FakeBackend.Entry.SEGMENT, 0));
+		final boolean isTts = s.sound.equals("tts");
+		for (int i = 0; i <= s.repeat; i++) {
+			final boolean isLast = i == s.repeat;
+			long time = START_TIME + s.prepareMillis + (long) i * s.interval * ONE_MINUTE_MILLIS + s.jitters[i];
+			if (s.pauseAt > 0 && i > 0)
+				time += PAUSE_MILLIS;
+			trace.add(new FakeBackend.Entry(time, i, FakeBackend.Entry.RING, 0));
+			int clicks = 0;
+			if (i > 0 && s.click == 1)
+				clicks = isLast ? 2 : 0;
+			else if (i > 0 && s.click > 1)
+				clicks = i % s.click == 0 ? s.click - 1 : i % s.click - 1;
+			for (int c = 0; c < clicks; c++)
+				trace.add(new FakeBackend.Entry(time + c * FakeBackend.CLICK_MILLIS, i, FakeBackend.Entry.CLICK, c));
+			final long soundTime = time + clicks * FakeBackend.CLICK_MILLIS;
+			if (i == 0) {
+				if (isTts)
+					trace.add(new FakeBackend.Entry(soundTime, i, FakeBackend.Entry.PHRASE, Timeline.PHRASE_PREPARE));
+			} else if (isLast && !s.ending.equals("no")) {
+				trace.add(new FakeBackend.Entry(soundTime, i, FakeBackend.Entry.BELL, bellOf(s.ending)));
+			} else if (isTts) {
+				trace.add(new FakeBackend.Entry(soundTime, i, FakeBackend.Entry.PHRASE,
+								isLast ? Timeline.PHRASE_LAST : Timeline.PHRASE_LOOP));
+			} else if (!s.sound.equals("no")) {
+				trace.add(new FakeBackend.Entry(soundTime, i, FakeBackend.Entry.BELL, bellOf(s.sound)));
+			}
+			if (!isLast)
+				trace.add(new FakeBackend.Entry(time, i + 1, FakeBackend.Entry.SEGMENT, 0));
+			// the drift of an event is its own lateness, never that of the events before
+			trace.add(new FakeBackend.Entry(time, i, FakeBackend.Entry.DRIFT, s.jitters[i]));
+			if (isLast)
+				trace.add(new FakeBackend.Entry(time, -1, FakeBackend.Entry.END, 1));
+		}
+		return trace;
+	}
+
+	private static int bellOf(final String snd) {
+		switch (snd) {
+			case "tiny": return Timeline.BELL_TINY;
+			case "small": return Timeline.BELL_SMALL;
+			case "large": return Timeline.BELL_LARGE;
+			default: return Timeline.BELL_NONE;
+		}
+	}
+
+	private static void printTrace(final String[] args) {
+		if (args.length < 7) {
+			System.err.println("Usage: --trace interval repeat sound ending click preparation [plain|jitter|pause]");
+			System.exit(2);
+		}
+		final Settings s = new Settings(Integer.parseInt(args[1]), Integer.parseInt(args[2]), args[3], args[4],
+								Integer.parseInt(args[5]), args[6], args.length > 7 ? args[7] : "plain");
+		final FakeBackend backend = runOn(new VirtualClock(START_TIME), s);
+		for (final FakeBackend.Entry e : backend.getTrace())
+			System.out.println(e);
+		final String error = check(s, backend);
+		System.out.println(error == null ? "OK" : "FAIL " + error);
+	}
+
+	/** Reads the string arrays of the resource file, which are the choices of the settings. */
+	private static Map<String, String[]> readArrays(final String path) throws IOException {
+		final String xml = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+		final Map<String, String[]> arrays = new HashMap<>();
+		final Matcher am = Pattern.compile("<string-array name=\"(\\w+)\">(.*?)</string-array>", Pattern.DOTALL).matcher(xml);
+		while (am.find()) {
+			final List<String> items = new ArrayList<>();
+			final Matcher im = Pattern.compile("<item>(.*?)</item>").matcher(am.group(2));
+			while (im.find())
+				items.add(im.group(1).trim());
+			arrays.put(am.group(1), items.toArray(new String[items.size()]));
+		}
+		return arrays;
+	}
+
+	// inner classes
+	private static final class Settings {
+		final int interval;
+		final int repeat;
+		final String sound;
+		final String ending;
+		final int click;
+		final String prep;
+		final String variant;
+		final int prepareMillis;
+		final int[] jitters;
+		final long pauseAt;
+		Settings(final int interval, final int repeat, final String sound, final String ending,
+					final int click, final String prep, final String variant) {
+			this.interval = interval;
+			this.repeat = repeat;
+			this.sound = sound;
+			this.ending = ending;
+			this.click = click;
+			this.prep = prep;
+			this.variant = variant;
+			prepareMillis = prep.equals("no") ? 3000 : prep.equals("gong") ? 20000 : 10000;
+			jitters = new int[repeat + 1];
+			if (!variant.equals("plain")) {
+				// a fixed pseudo-random lateness, so every run is the same
+				long seed = interval * 131 + repeat * 17 + click;
+				for (int i = 0; i < jitters.length; i++) {
+					seed = seed * 6364136223846793005L + 1442695040888963407L;
+					jitters[i] = (int) ((seed >>> 33) % MAX_JITTER_MILLIS);
+				}
+			}
+			// in the middle of the first interval
+			pauseAt = variant.equals("pause") ? START_TIME + prepareMillis + interval * ONE_MINUTE_MILLIS / 2 : 0;
+		}
+		@Override
+		public String toString() {
+			return interval + " " + repeat + " " + sound + " " + ending + " " + click + " " + prep + " " + variant;
+		}
+	}
+
+	private static final class Result {
+		long sessions;
+		long events;
+		long failures;
+		int maxDrift;
+		final List<String> reported = new ArrayList<>();
+		void add(final Result other) {
+			sessions += other.sessions;
+			events += other.events;
+			failures += other.failures;
+			maxDrift = Math.max(maxDrift, other.maxDrift);
+			for (final String r : other.reported) {
+				if (reported.size() < MAX_REPORTED)
+					reported.add(r);
+			}
+		}
+	}
+}
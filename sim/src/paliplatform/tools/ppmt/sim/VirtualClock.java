@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt.sim;
+
+import java.util.PriorityQueue;
+
+import paliplatform.tools.ppmt.SessionEngine;
+
+/**
+ * A clock that only moves when the next task is run. Tasks due at the same
+ * time are run in the order they were scheduled, so a run is deterministic.
+ */
+public class VirtualClock implements SessionEngine.Clock {
+	private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+	private long now;
+	private long seq;
+
+	public VirtualClock(final long start) {
+		now = start;
+	}
+
+	@Override
+	public long now() {
+		return now;
+	}
+
+	/** Schedules the runnable at the time, or now if the time is past. */
+	public Task schedule(final long time, final Runnable runnable) {
+		final Task task = new Task(Math.max(time, now), seq++, runnable);
+		tasks.add(task);
+		return task;
+	}
+
+	/** Runs the tasks in time order until none is left, or up to the limit. */
+	public int runAll(final int limit) {
+		int count = 0;
+		while (!tasks.isEmpty() && count < limit) {
+			final Task task = tasks.poll();
+			if (task.cancelled) continue;
+			now = task.time;
+			task.runnable.run();
+			count++;
+		}
+		return count;
+	}
+
+	// inner classes
+	public static class Task implements Comparable<Task> {
+		private final long time;
+		private final long seq;
+		private final Runnable runnable;
+		private boolean cancelled;
+		private Task(final long time, final long seq, final Runnable runnable) {
+			this.time = time;
+			this.seq = seq;
+			this.runnable = runnable;
+		}
+		public long getTime() {
+			return time;
+		}
+		public void cancel() {
+			cancelled = true;
+		}
+		@Override
+		public int compareTo(final Task other) {
+			if (time != other.time)
+				return time < other.time ? -1 : 1;
+			return seq < other.seq ? -1 : seq > other.seq ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Plays bells and clicks from PCM decoded once into static AudioTracks,
+ * so a sound starts without opening and decoding its file again.
+ * The engine is shared by the player service and the Live tab.
+ */
+public class BellEngine {
+	public static final int[] SOUNDS = { R.raw.bell_tiny, R.raw.bell_small, R.raw.bell_large, R.raw.click };
+	private static BellEngine instance;
+	private static int refCount = 0;
+	private final SoundBank soundBank;
+	private final HashMap<Integer, Voice> voiceMap;
+	private final Handler handler;
+	private volatile boolean ready;
+	private long lastLatencyNanos;
+	private long maxLatencyNanos;
+	private long totalLatencyNanos;
+	private int latencyCount;
+
+	private BellEngine(final Context context) {
+		soundBank = new SoundBank(context);
+		voiceMap = new HashMap<>();
+		handler = new Handler(Looper.getMainLooper());
+		ready = false;
+	}
+
+	/** Returns the shared engine, creating and loading it on first use. */
+	public static synchronized BellEngine acquire(final Context context) {
+		if (instance == null) {
+			instance = new BellEngine(context.getApplicationContext());
+			instance.startLoading();
+		}
+		refCount++;
+		return instance;
+	}
+
+	/** Releases the shared engine when its last user is gone. */
+	public static synchronized void release() {
+		if (instance == null) return;
+		refCount--;
+		if (refCount <= 0) {
+			instance.releaseVoices();
+			instance = null;
+			refCount = 0;
+		}
+	}
+
+	private void startLoading() {
+		final Thread thread = new Thread(null, doLoading, "bell-loader");
+		thread.start();
+	}
+
+	private Runnable doLoading = new Runnable() {
+		@Override
+		public void run() {
+			for (final int resId : SOUNDS) {
+				try {
+					final SoundBank.Sound sound = soundBank.get(resId);
+					final Voice voice = new Voice(sound);
+					synchronized (BellEngine.this) {
+						voiceMap.put(resId, voice);
+					}
+				} catch (IOException | RuntimeException e) {
+					// leave the engine not ready; callers fall back to MediaPlayer
+					return;
+				}
+			}
+			ready = true;
+		}
+	};
+
+	private synchronized void releaseVoices() {
+		ready = false;
+		for (final Voice voice : voiceMap.values())
+			voice.release();
+		voiceMap.clear();
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	public SoundBank getSoundBank() {
+		return soundBank;
+	}
+
+	public boolean play(final int resId) {
+		return play(resId, null);
+	}
+
+	/**
+	 * Starts the sound from the beginning. The optional callback is run
+	 * on the main thread when the sound has been played through.
+	 * Returns false if the sound is not loaded.
+	 */
+	public synchronized boolean play(final int resId, final Runnable onDone) {
+		if (!ready) return false;
+		final Voice voice = voiceMap.get(resId);
+		if (voice == null) return false;
+		return voice.trigger(onDone);
+	}
+
+	/**
+	 * Loads another sound to be played by its key, e.g., a synthesized
+	 * phrase. The key must not be a resource id. Returns false if the
+	 * engine is not ready or the sound cannot be played.
+	 */
+	public synchronized boolean load(final int key, final SoundBank.Sound sound) {
+		if (!ready) return false;
+		final Voice voice;
+		try {
+			voice = new Voice(sound);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		final Voice old = voiceMap.put(key, voice);
+		if (old != null)
+			old.release();
+		return true;
+	}
+
+	/** Releases a sound loaded by its key. */
+	public synchronized void unload(final int key) {
+		final Voice voice = voiceMap.remove(key);
+		if (voice != null)
+			voice.release();
+	}
+
+	/** Stops all sounds and drops their pending callbacks. */
+	public synchronized void stop() {
+		for (final Voice voice : voiceMap.values())
+			voice.stop();
+	}
+
+	/** Returns the duration of a loaded sound, or -1. */
+	public synchronized int getDurationMillis(final int resId) {
+		final Voice voice = voiceMap.get(resId);
+		return voice == null ? -1 : voice.durationMillis;
+	}
+
+	/** Returns the last measured trigger-to-start latency, or -1 if none yet. */
+	public synchronized int getLastLatencyMillis() {
+		return latencyCount == 0 ? -1 : (int) (lastLatencyNanos / 1000000);
+	}
+
+	public synchronized int getMeanLatencyMillis() {
+		return latencyCount == 0 ? -1 : (int) (totalLatencyNanos / latencyCount / 1000000);
+	}
+
+	public synchronized int getMaxLatencyMillis() {
+		return latencyCount == 0 ? -1 : (int) (maxLatencyNanos / 1000000);
+	}
+
+	private synchronized void recordLatency(final long nanos) {
+		final long lat = nanos < 0 ? 0 : nanos;
+		lastLatencyNanos = lat;
+		totalLatencyNanos += lat;
+		if (lat > maxLatencyNanos)
+			maxLatencyNanos = lat;
+		latencyCount++;
+	}
+
+	// inner classes
+	private class Voice implements AudioTrack.OnPlaybackPositionUpdateListener {
+		private final AudioTrack track;
+		private final int frames;
+		private final int sampleRate;
+		private final int durationMillis;
+		private final AudioTimestamp timestamp;
+		private long triggerNanos;
+		private Runnable onDone;
+		public Voice(final SoundBank.Sound sound) {
+			frames = sound.getFrameCount();
+			sampleRate = sound.getSampleRate();
+			durationMillis = sound.getDurationMillis();
+			timestamp = new AudioTimestamp();
+			track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+							AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+							frames * 2, AudioTrack.MODE_STATIC);
+			track.write(sound.getPcm(), 0, frames);
+			track.setPlaybackPositionUpdateListener(this, handler);
+		}
+		public boolean trigger(final Runnable done) {
+			if (track.getState() != AudioTrack.STATE_INITIALIZED) return false;
+			try {
+				track.stop();
+				track.reloadStaticData();
+				track.setNotificationMarkerPosition(frames);
+				onDone = done;
+				triggerNanos = System.nanoTime();
+				track.play();
+				return true;
+			} catch (IllegalStateException e) {
+				return false;
+			}
+		}
+		public void stop() {
+			onDone = null;
+			try {
+				track.stop();
+			} catch (IllegalStateException e) {
+			}
+		}
+		public void release() {
+			onDone = null;
+			track.release();
+		}
+		@Override
+		public void onMarkerReached(final AudioTrack t) {
+			// the output timestamp tells when the first frame was heard
+			final long startNanos;
+			if (track.getTimestamp(timestamp))
+				startNanos = timestamp.nanoTime - timestamp.framePosition * 1000000000L / sampleRate;
+			else
+				startNanos = System.nanoTime() - durationMillis * 1000000L;
+			recordLatency(startNanos - triggerNanos);
+			final Runnable done = onDone;
+			onDone = null;
+			if (done != null)
+				done.run();
+		}
+		@Override
+		public void onPeriodicNotification(final AudioTrack t) {
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.DateFormatSymbols;
+import java.util.Date;
+import java.util.TimeZone;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.LayoutInflater;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Shows the history of the sessions. The totals are read from the header
+ * of the journal and only the last records are read, so it is shown at
+ * once however long the history is. The whole journal can be exported
+ * as CSV to a document of the user's choice.
+ */
+public class HistoryFragment extends Fragment {
+	private static final int LAST_RECORDS = 50;
+	private static final int REQUEST_EXPORT = 1;
+	private SessionJournal journal;
+
+	@Override
+	public View onCreateView(final LayoutInflater inflater, final ViewGroup container, final Bundle savedInstanceState) {
+		if (journal == null)
+			journal = new SessionJournal(new File(getActivity().getFilesDir(), PlayerService.JOURNAL_FILE));
+		return inflater.inflate(R.layout.fragment_history, container, false);
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		getActivity().findViewById(R.id.button_export).setOnClickListener(exportClicker);
+		showHistory();
+	}
+
+	private void showHistory() {
+		final SessionJournal.Header header = journal.readHeader();
+		final TextView summaryView = (TextView) getActivity().findViewById(R.id.history_summary);
+		final TextView listView = (TextView) getActivity().findViewById(R.id.history_list);
+		if (header.getCount() == 0) {
+			summaryView.setText(R.string.history_empty);
+			listView.setText("");
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		final int today = SessionJournal.toDay(now, TimeZone.getDefault().getOffset(now) / 60000);
+		final String[] dayNames = DateFormatSymbols.getInstance().getShortWeekdays();
+		final StringBuilder weekdays = new StringBuilder();
+		for (int i = 0; i < 7; i++) {
+			if (i > 0)
+				weekdays.append("  ");
+			// the names are indexed from Sunday being 1
+			weekdays.append(dayNames[i + 1]).append(' ').append(header.getWeekdayCount(i));
+		}
+		summaryView.setText(getResources().getString(R.string.history_summary, header.getCount(),
+							header.getCompletedCount(), TimeFormat.formatMillis(header.getTotalSatMillis(), true),
+							header.getStreak(today), header.getBestStreak(), weekdays.toString()));
+		final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+		final String stopped = getResources().getString(R.string.history_stopped);
+		final StringBuilder list = new StringBuilder();
+		for (final SessionJournal.Entry e : journal.readLast(LAST_RECORDS)) {
+			list.append(dateFormat.format(new Date(e.getStart()))).append("  ")
+				.append(e.getInterval()).append('x').append(e.getRepeat()).append("  ")
+				.append(TimeFormat.formatMillis(e.getSatMillis(), true));
+			if (!e.isCompleted())
+				list.append(' ').append(stopped);
+			list.append('\n');
+		}
+		listView.setText(list.toString());
+	}
+
+	private View.OnClickListener exportClicker = new View.OnClickListener() {
+		@Override
+		public void onClick(final View v) {
+			final Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT)
+								.addCategory(Intent.CATEGORY_OPENABLE)
+								.setType("text/csv")
+								.putExtra(Intent.EXTRA_TITLE, "ppmt-history.csv");
+			startActivityForResult(intent, REQUEST_EXPORT);
+		}
+	};
+
+	@Override
+	public void onActivityResult(final int requestCode, final int resultCode, final Intent data) {
+		if (requestCode != REQUEST_EXPORT || resultCode != Activity.RESULT_OK || data == null || data.getData() == null) return;
+		// not shown any more, e.g., the activity made again while the picker was open
+		if (journal == null || getActivity() == null) return;
+		export(getActivity(), data.getData());
+	}
+
+	/** Streams the journal into the document on a thread of its own, and tells how it went. */
+	private void export(final Activity activity, final Uri uri) {
+		final Context context = activity.getApplicationContext();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				boolean done = false;
+				try (final OutputStream os = context.getContentResolver().openOutputStream(uri)) {
+					if (os != null) {
+						final Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+						journal.exportCsv(out);
+						out.flush();
+						done = true;
+					}
+				} catch (IOException | RuntimeException e) {
+				}
+				final int msg = done ? R.string.history_exported : R.string.history_export_failed;
+				activity.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(context, context.getString(msg), Toast.LENGTH_SHORT).show();
+					}
+				});
+			}
+		}, "journal-export").start();
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * The bell of the Live tab. The bells are decoded once and mixed with a
+ * fixed number of voices into one AudioTrack at the output rate of the
+ * device, which is written with small blocks while the tab is shown, so
+ * a strike is heard one block and the track buffer after the touch.
+ * The time from the touch-down to the first sample heard is measured
+ * with the output timestamp of the track.
+ */
+public class LiveChime {
+	private static final int VOICES = 4;
+	private final SoundBank soundBank;
+	private final int sampleRate;
+	private final int blockFrames;
+	private final VoiceMixer mixer;
+	private final HashMap<Integer, short[]> bellMap;
+	private final AudioTimestamp timestamp;
+	private final Handler handler;
+	private Listener listener;
+	private AudioTrack track;
+	private volatile boolean ready;
+	private volatile boolean running;
+	private Thread writer;
+	private long touchNanos;
+	private boolean measuring;
+	private int lastLatencyMillis;
+	private int maxLatencyMillis;
+	private long totalLatencyMillis;
+	private int latencyCount;
+
+	public interface Listener {
+		/** Called on the main thread when the latency of a strike is measured. */
+		void onLatencyMeasured(int lastMillis, int meanMillis, int maxMillis);
+	}
+
+	public LiveChime(final SoundBank soundBank) {
+		this.soundBank = soundBank;
+		sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+		final int minBuffer = AudioTrack.getMinBufferSize(sampleRate,
+							AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+		// write a quarter of the smallest buffer at a time, to be heard soon
+		blockFrames = Math.max(64, minBuffer / 2 / 4);
+		mixer = new VoiceMixer(VOICES, blockFrames);
+		bellMap = new HashMap<>();
+		timestamp = new AudioTimestamp();
+		handler = new Handler(Looper.getMainLooper());
+		lastLatencyMillis = -1;
+		ready = false;
+		final Thread thread = new Thread(null, doLoading, "chime-loader");
+		thread.start();
+	}
+
+	public void setListener(final Listener listener) {
+		this.listener = listener;
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	private Runnable doLoading = new Runnable() {
+		@Override
+		public void run() {
+			final int[] bells = { R.raw.bell_tiny, R.raw.bell_small, R.raw.bell_large };
+			try {
+				for (final int resId : bells) {
+					final SoundBank.Sound sound = soundBank.get(resId);
+					final short[] pcm = VoiceMixer.resample(sound.getPcm(), sound.getSampleRate(), sampleRate);
+					synchronized (LiveChime.this) {
+						bellMap.put(resId, pcm);
+					}
+				}
+				ready = true;
+			} catch (IOException | RuntimeException e) {
+				// leave it not ready; the caller falls back
+			}
+		}
+	};
+
+	/** Opens the output and keeps it fed with silence, while the bell may be struck. */
+	public synchronized void start() {
+		if (running) return;
+		if (writer != null) {
+			// still ringing out after a stop, keep it
+			running = true;
+			return;
+		}
+		final int bufferBytes = AudioTrack.getMinBufferSize(sampleRate,
+							AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+		track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+							AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+							Math.max(bufferBytes, blockFrames * 2 * 2), AudioTrack.MODE_STREAM);
+		if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+			track.release();
+			track = null;
+			return;
+		}
+		// the head of the new track starts at zero, so do the frames
+		mixer.reset();
+		measuring = false;
+		running = true;
+		track.play();
+		writer = new Thread(null, doWriting, "chime-writer");
+		writer.setPriority(Thread.MAX_PRIORITY);
+		writer.start();
+	}
+
+	/** Lets the bells ring out, then closes the output. */
+	public synchronized void stop() {
+		running = false;
+	}
+
+	/** Stops the bells at once. */
+	public void silence() {
+		mixer.silence();
+	}
+
+	/** Stops the bells and closes the output. */
+	public synchronized void release() {
+		running = false;
+		mixer.silence();
+	}
+
+	/**
+	 * Strikes the bell. The time of the touch-down is given on the
+	 * uptime clock, as in MotionEvent.getEventTime(). Returns false
+	 * if the bell cannot be struck now.
+	 */
+	public boolean strike(final int resId, final long eventTimeMillis) {
+		final short[] pcm;
+		synchronized (this) {
+			if (!ready || !running) return false;
+			pcm = bellMap.get(resId);
+			if (pcm == null) return false;
+			// both clocks are the monotonic clock
+			touchNanos = eventTimeMillis * 1000000L;
+			measuring = true;
+			mixer.strike(pcm);
+		}
+		return true;
+	}
+
+	private Runnable doWriting = new Runnable() {
+		@Override
+		public void run() {
+			final short[] out = new short[blockFrames];
+			while (true) {
+				synchronized (LiveChime.this) {
+					if (!running && mixer.isIdle()) {
+						track.stop();
+						track.release();
+						track = null;
+						writer = null;
+						return;
+					}
+				}
+				mixer.render(out, blockFrames);
+				if (track.write(out, 0, blockFrames) < 0) {
+					running = false;
+					mixer.silence();
+				}
+				checkLatency();
+			}
+		}
+	};
+
+	/** Finds when the first frame of the last strike was heard, once it has been. */
+	private void checkLatency() {
+		final long frame;
+		synchronized (this) {
+			if (!measuring) return;
+			frame = mixer.getLastStartFrame();
+			if (frame < 0) return;
+		}
+		final long heardNanos;
+		if (track.getTimestamp(timestamp)) {
+			if (timestamp.framePosition < frame) return;
+			heardNanos = timestamp.nanoTime - (timestamp.framePosition - frame) * 1000000000L / sampleRate;
+		} else {
+			// no timestamp, take the time the head passes the frame, a little late
+			if ((track.getPlaybackHeadPosition() & 0xffffffffL) < frame) return;
+			heardNanos = SystemClock.uptimeMillis() * 1000000L;
+		}
+		final int last;
+		final int mean;
+		final int max;
+		synchronized (this) {
+			if (!measuring) return;
+			measuring = false;
+			last = (int) Math.max(0, (heardNanos - touchNanos) / 1000000);
+			lastLatencyMillis = last;
+			totalLatencyMillis += last;
+			latencyCount++;
+			maxLatencyMillis = Math.max(maxLatencyMillis, last);
+			mean = (int) (totalLatencyMillis / latencyCount);
+			max = maxLatencyMillis;
+		}
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (listener != null)
+					listener.onLatencyMeasured(last, mean, max);
+			}
+		});
+	}
+
+	/** Returns the last measured touch-to-sound latency, or -1 if none yet. */
+	public synchronized int getLastLatencyMillis() {
+		return lastLatencyMillis;
+	}
+
+	public synchronized int getMeanLatencyMillis() {
+		return latencyCount == 0 ? -1 : (int) (totalLatencyMillis / latencyCount);
+	}
+
+	public synchronized int getMaxLatencyMillis() {
+		return latencyCount == 0 ? -1 : maxLatencyMillis;
+	}
+}
@@ -19,27 +19,24 @@ package paliplatform.tools.ppmt;
 import android.app.Activity;
 import android.app.Fragment;
 import android.os.Bundle;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.LayoutInflater;
 import android.widget.RadioGroup;
+import android.widget.TextView;
 import android.content.Context;
-import android.content.SharedPreferences;
 
 public class LiveFragment extends Fragment {
 	private int currBell = R.id.radio_bell_small; //default
 
     @Override
 	public View onCreateView(final LayoutInflater inflater, final ViewGroup container, final Bundle savedInstanceState) {
-		final SharedPreferences prefs = ((MainActivity) getActivity()).getPrefs();	
-		final SharedPreferences.Editor prefsEditor = prefs.edit();
-		final String bellKey = "pref_bell_size";
-		if (prefs.contains(bellKey)) {
-			setCurrBell(prefs.getInt(bellKey, 0));
-		} else {
-			prefsEditor.putInt(bellKey, getCurrBell());
-			prefsEditor.commit();
-		}
+		final int bellSize = Settings.get(getActivity()).getBellSize();
+		if (bellSize != 0)
+			setCurrBell(bellSize);
+		else
+			Settings.putBellSize(getCurrBell());
 		return inflater.inflate(R.layout.fragment_live, container, false);
 	}
 
@@ -48,6 +45,52 @@ public class LiveFragment extends Fragment {
 		super.onStart();
 		final RadioGroup bellGroup = (RadioGroup) getActivity().findViewById(R.id.radiogroup_bell_size);
 		bellGroup.check(currBell);
+		getActivity().findViewById(R.id.button_bell).setOnTouchListener(bellToucher);
+	}
+
+	@Override
+	public void onResume() {
+		super.onResume();
+		final LiveChime chime = ((MainActivity) getActivity()).getLiveChime();
+		if (chime == null) return;
+		chime.setListener(latencyListener);
+		chime.start();
+		if (chime.getLastLatencyMillis() >= 0)
+			showLatency(chime.getLastLatencyMillis(), chime.getMeanLatencyMillis(), chime.getMaxLatencyMillis());
+	}
+
+	@Override
+	public void onPause() {
+		final LiveChime chime = ((MainActivity) getActivity()).getLiveChime();
+		if (chime != null) {
+			chime.setListener(null);
+			chime.stop();
+		}
+		super.onPause();
+	}
+
+	// strike on the touch-down, not on the click at the release
+	private View.OnTouchListener bellToucher = new View.OnTouchListener() {
+		@Override
+		public boolean onTouch(final View v, final MotionEvent event) {
+			if (event.getActionMasked() == MotionEvent.ACTION_DOWN)
+				((MainActivity) getActivity()).strike(event.getEventTime());
+			// let the button show its pressed state
+			return false;
+		}
+	};
+
+	private LiveChime.Listener latencyListener = new LiveChime.Listener() {
+		@Override
+		public void onLatencyMeasured(final int lastMillis, final int meanMillis, final int maxMillis) {
+			showLatency(lastMillis, meanMillis, maxMillis);
+		}
+	};
+
+	private void showLatency(final int lastMillis, final int meanMillis, final int maxMillis) {
+		final TextView latencyText = (TextView) getActivity().findViewById(R.id.live_latency);
+		if (latencyText != null)
+			latencyText.setText(getResources().getString(R.string.live_latency, lastMillis, meanMillis, maxMillis));
 	}
 
 	public int getCurrBell() {
@@ -16,15 +16,20 @@
 
 package paliplatform.tools.ppmt;
 
+import java.io.File;
 import java.util.HashMap;
 
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
 import android.app.Activity;
 import android.app.ActionBar;
 import android.app.Fragment;
 import android.app.FragmentTransaction;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.Window;
@@ -35,41 +40,57 @@ import android.media.MediaPlayer;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ComponentName;
-import android.content.SharedPreferences;
 import android.content.ServiceConnection;
-import android.preference.PreferenceManager;
 
 // for debugging
 //~ import android.widget.Toast;
 //~ 		Toast.makeText(MainActivity.this, ""+currPosition, Toast.LENGTH_SHORT).show();
 
 public class MainActivity extends Activity {
-	private SharedPreferences prefs;
+	private static final String TAG = "ppmt";
+	/** The time the class is loaded, the nearest to the process start that is known on API 19. */
+	private static final long loadTime = SystemClock.uptimeMillis();
 	private Intent playerServiceIntent;
 	private ComponentName playerServiceCompName;
 	private PlayerService playerService;
 	private ServiceConnection serviceConnection;
 	private final TimerFragment timerFragment;
-	private final SettingsFragment settingsFragment;
-	private final LiveFragment liveFragment;
-	private final AboutFragment aboutFragment;
+	private SettingsFragment settingsFragment;
+	private LiveFragment liveFragment;
+	private HistoryFragment historyFragment;
+	private AboutFragment aboutFragment;
 	private final HashMap<Integer, Integer> liveBellMap;
 	private MediaPlayer liveBellPlayer;
+	private LiveChime liveChime;
+	private BellEngine bellEngine;
 	private boolean settingsEnabled;
+	private boolean screenDark;
+	private long createTime;
 
 	public MainActivity() {
+		// the other tabs are made when first shown
 		timerFragment = new TimerFragment();
-		settingsFragment = new SettingsFragment();
-		liveFragment = new LiveFragment();
-		aboutFragment = new AboutFragment();
 		liveBellMap = new HashMap<>();
 		settingsEnabled = true;
 	}
 
+	/**
+	 * Does only what the first frame of the Timer tab needs. The bells
+	 * are loaded after that frame, and the player service is started on
+	 * the first Start, or after the frame if a track is to be rendered
+	 * or a session resumed.
+	 */
     @Override
 	protected void onCreate(final Bundle savedInstanceState) {
+		createTime = SystemClock.uptimeMillis();
+		Trace.beginSection("ppmt:onCreate");
 		super.onCreate(savedInstanceState);
+		Trace.beginSection("ppmt:settings");
+		Settings.get(this);
+		Trace.endSection();
+		Trace.beginSection("ppmt:inflate");
 		setContentView(R.layout.activity_main);
+		Trace.endSection();
 		// init fragment
         if (findViewById(R.id.fragment_container) != null) {
 			replaceFragment(timerFragment);
@@ -78,18 +99,74 @@ public class MainActivity extends Activity {
 		liveBellMap.put(R.id.radio_bell_tiny, R.raw.bell_tiny);
 		liveBellMap.put(R.id.radio_bell_small, R.raw.bell_small);
 		liveBellMap.put(R.id.radio_bell_large, R.raw.bell_large);
-		// init settings
-		PreferenceManager.setDefaultValues(this, R.xml.settings, false);
-		prefs = PreferenceManager.getDefaultSharedPreferences(this);
-		// init player service
 		playerServiceIntent = new Intent(this, PlayerService.class);
-		playerServiceCompName = startService(playerServiceIntent);
+		getWindow().getDecorView().getViewTreeObserver().addOnPreDrawListener(firstFrameListener);
+		Trace.endSection();
+	}
+
+	private ViewTreeObserver.OnPreDrawListener firstFrameListener = new ViewTreeObserver.OnPreDrawListener() {
+		@Override
+		public boolean onPreDraw() {
+			final View decor = getWindow().getDecorView();
+			decor.getViewTreeObserver().removeOnPreDrawListener(this);
+			final long now = SystemClock.uptimeMillis();
+			Log.i(TAG, "first frame: " + (now - createTime) + " ms from onCreate, "
+						+ (now - loadTime) + " ms from class load");
+			// after this frame is drawn
+			decor.post(doDeferredInit);
+			return true;
+		}
+	};
+
+	private Runnable doDeferredInit = new Runnable() {
+		@Override
+		public void run() {
+			if (isFinishing()) return;
+			Trace.beginSection("ppmt:deferred");
+			if (bellEngine == null)
+				bellEngine = BellEngine.acquire(MainActivity.this);
+			if (Settings.get(MainActivity.this).getBackend().equals("render"))
+				startPlayerService();
+			// the service is in this process, so a session resumed after it was killed comes with a new activity
+			checkRestoredSession();
+			Trace.endSection();
+			reportFullyDrawn();
+		}
+	};
+
+	/** Follows a session resumed by the service after the process was killed, or one to be resumed. */
+	private void checkRestoredSession() {
+		if (serviceConnection == null && hasCheckpoint())
+			followRestoredSession();
+	}
+
+	private boolean hasCheckpoint() {
+		return new CheckpointFile(new File(getFilesDir(), PlayerService.CHECKPOINT_FILE)).read() != null;
+	}
+
+	private void followRestoredSession() {
+		timerFragment.setState(TimerFragment.State.COUNTDOWN);
+		setSettingsEnabled(false);
+		startPlayerService();
+		bindPlayerService(false);
+		if (Settings.get(this).isKeepScreenOn())
+			keepAwake(true);
+	}
+
+	private void startPlayerService() {
+		if (playerServiceCompName == null)
+			playerServiceCompName = startService(playerServiceIntent);
 	}
 
     @Override
 	protected void onDestroy() {
+		getWindow().getDecorView().removeCallbacks(doDeferredInit);
 		if (liveBellPlayer != null)
 			liveBellPlayer.release();
+		if (liveChime != null)
+			liveChime.release();
+		if (bellEngine != null)
+			BellEngine.release();
 		if (playerServiceCompName != null)
 			stopService(playerServiceIntent);
 		super.onDestroy();
@@ -118,15 +195,12 @@ public class MainActivity extends Activity {
 		return super.onOptionsItemSelected(item);
 	}
 	
-	public SharedPreferences getPrefs() {
-		return prefs;
-	}
-
 	private void replaceFragment(final Fragment frag) {
 		final Button[] buttons = { 
 			(Button) findViewById(R.id.button_timer),
 			(Button) findViewById(R.id.button_settings),
 			(Button) findViewById(R.id.button_live),
+			(Button) findViewById(R.id.button_history),
 			(Button) findViewById(R.id.button_about) };
 		for (int i = 0; i < buttons.length; i++) {
 			if (i == 1 && !settingsEnabled)
@@ -141,8 +215,10 @@ public class MainActivity extends Activity {
 			bthl = buttons[1];
 		else if (frag instanceof LiveFragment)
 			bthl = buttons[2];
-		else
+		else if (frag instanceof HistoryFragment)
 			bthl = buttons[3];
+		else
+			bthl = buttons[4];
 		bthl.setTextColor(getResources().getColor(android.R.color.holo_blue_bright, null));
 		final FragmentTransaction transaction = getFragmentManager().beginTransaction();
 		transaction.replace(R.id.fragment_container, frag);
@@ -154,14 +230,31 @@ public class MainActivity extends Activity {
 	}
 
 	public void goSettings(final View view) {
+		if (settingsFragment == null)
+			settingsFragment = new SettingsFragment();
 		replaceFragment(settingsFragment);
 	}
 
 	public void goLive(final View view) {
+		if (liveFragment == null)
+			liveFragment = new LiveFragment();
+		if (liveChime == null) {
+			if (bellEngine == null)
+				bellEngine = BellEngine.acquire(this);
+			liveChime = new LiveChime(bellEngine.getSoundBank());
+		}
 		replaceFragment(liveFragment);
 	}
 
+	public void goHistory(final View view) {
+		if (historyFragment == null)
+			historyFragment = new HistoryFragment();
+		replaceFragment(historyFragment);
+	}
+
 	public void goAbout(final View view) {
+		if (aboutFragment == null)
+			aboutFragment = new AboutFragment();
 		replaceFragment(aboutFragment);
 	}
 
@@ -170,15 +263,15 @@ public class MainActivity extends Activity {
 		if (state == TimerFragment.State.READY) {
 			timerFragment.setState(TimerFragment.State.COUNTDOWN);
 			setSettingsEnabled(false);
-			bindPlayerService();
-			if (prefs.getBoolean("pref_keepscreenon", false))
+			startPlayerService();
+			bindPlayerService(true);
+			if (Settings.get(this).isKeepScreenOn())
 				keepAwake(true);
 		} else if (state == TimerFragment.State.COUNTDOWN) {
 			if (playerService == null) return;
 			if (playerService.getCurrPlayState() == PlayerService.PlayState.BELL) return;
 			playerService.pauseSession();
 			timerFragment.setState(TimerFragment.State.PAUSED);
-			timerFragment.stopRefreshTimer();
 		} else if (state == TimerFragment.State.PAUSED) {
 			if (playerService == null) return;
 			if (playerService.getCurrPlayState() == PlayerService.PlayState.BELL) return;
@@ -198,7 +291,7 @@ public class MainActivity extends Activity {
 		timerFragment.updateStartButton();
 		unbindPlayerService();
 		stopLiveBellPlayer();
-		if (prefs.getBoolean("pref_keepscreenon", false))
+		if (Settings.get(this).isKeepScreenOn())
 			keepAwake(false);
 	}
 
@@ -210,23 +303,43 @@ public class MainActivity extends Activity {
 		if (playerService != null) {
 			playerService.stopPlayers();
 			playerService.stopSession();
+			playerService.releasePlayers();
+		}
+		releasePlayerService();
+	}
+
+	/**
+	 * Unbinds the service, also if not connected yet, leaving the session
+	 * as it is. Used when the session is over, so the last bell rings out.
+	 */
+	public void releasePlayerService() {
+		playerService = null;
+		if (serviceConnection != null) {
 			unbindService(serviceConnection);
-			playerService = null;
+			serviceConnection = null;
 		}
 	}
-	private void bindPlayerService() {
+	/** Binds the player service, and starts a new session or follows the one restored. */
+	private void bindPlayerService(final boolean isNew) {
+		releasePlayerService();
 		serviceConnection = new ServiceConnection() {
 			@Override
 			public void onServiceConnected(final ComponentName className, final IBinder service) {
 				final PlayerService.PlayerServiceBinder binder = (PlayerService.PlayerServiceBinder) service;
 				playerService = binder.getPlayerService();
-				playerService.startSession();
+				if (isNew) {
+					playerService.startSession();
+				} else {
+					playerService.restoreSession();
+					if (playerService.getSnapshot().isPaused())
+						timerFragment.setState(TimerFragment.State.PAUSED);
+				}
 				timerFragment.startRefreshTimer();
+				timerFragment.updateStartButton();
 			}
 			@Override
 			public void onServiceDisconnected(final ComponentName componentName) {
 				playerService.stopSession();
-				serviceConnection = null;
 				playerService = null;
 				timerFragment.stopRefreshTimer();
 			}
@@ -235,16 +348,33 @@ public class MainActivity extends Activity {
 	}
 
 	// for Live fragment
-	public void chime(final View view) {
+	public LiveChime getLiveChime() {
+		return liveChime;
+	}
+
+	/** Strikes the Live bell, at the touch-down of the given time on the uptime clock. */
+	public void strike(final long eventTime) {
 		if (liveFragment == null) return;
-		liveBellPlayer = MediaPlayer.create(this, liveBellMap.get(((LiveFragment)liveFragment).getCurrBell()));
-		liveBellPlayer.start();
+		final int bellId = liveBellMap.get(liveFragment.getCurrBell());
+		if (liveChime != null && liveChime.strike(bellId, eventTime)) return;
+		// not loaded yet, fall back
+		if (bellEngine != null && bellEngine.play(bellId)) return;
+		if (liveBellPlayer != null)
+			liveBellPlayer.release();
+		liveBellPlayer = MediaPlayer.create(this, bellId);
+		if (liveBellPlayer != null)
+			liveBellPlayer.start();
 	}
 
 	private void stopLiveBellPlayer() {
+		if (bellEngine != null)
+			bellEngine.stop();
+		if (liveChime != null)
+			liveChime.silence();
 		try {
 			if (liveBellPlayer != null) {
 				liveBellPlayer.stop();
+				liveBellPlayer.release();
 				liveBellPlayer = null;
 			}
 		} catch (IllegalStateException e) {
@@ -255,10 +385,8 @@ public class MainActivity extends Activity {
 		if (liveFragment == null) return;
 		if (((RadioButton) view).isChecked()) {
 			final int bellId = view.getId();
-			((LiveFragment)liveFragment).setCurrBell(bellId);
-			final SharedPreferences.Editor peditor = prefs.edit();
-			peditor.putInt("pref_bell_size", bellId);
-			peditor.commit();
+			liveFragment.setCurrBell(bellId);
+			Settings.putBellSize(bellId);
 		}
 	}
 
@@ -275,6 +403,7 @@ public class MainActivity extends Activity {
 	public void keepAwake(final boolean val) {
 		final Window win = getWindow();
 		final WindowManager.LayoutParams winParams = win.getAttributes();
+		screenDark = val;
 		if (val) {
 			win.addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 			win.addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
@@ -287,6 +416,11 @@ public class MainActivity extends Activity {
 		win.setAttributes(winParams);
 	}
 
+	/** Returns whether the screen is kept on but with no light, so nothing is seen. */
+	public boolean isScreenDark() {
+		return screenDark;
+	}
+
 	public void quit() {
 		resetTimer();
 		MainActivity.this.finish();
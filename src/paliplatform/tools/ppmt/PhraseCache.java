@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+
+/**
+ * Synthesizes the phrases of a session ahead, with one TextToSpeech
+ * engine made at the first session with phrases and kept while the
+ * service lives. The phrases are synthesized to files in the app cache,
+ * in a folder for each engine and voice, so a phrase is synthesized once
+ * per voice. Each file is decoded and loaded into the bell engine, so
+ * the phrase is played like a bell at its boundary. A phrase not ready
+ * by then is spoken by the engine instead.
+ */
+public class PhraseCache implements TextToSpeech.OnInitListener {
+	private static final int INIT_PENDING = 1;
+	/** Marks the utterances synthesized to files, not those spoken. */
+	private static final String SYNTH_ID = "synth:";
+	private final Context context;
+	private final BellEngine bellEngine;
+	private final EventLog events;
+	private final File rootDir;
+	private final HandlerThread thread;
+	private final Handler handler;
+	private final HashMap<String, Integer> loadedKeys;
+	private final ArrayDeque<String> synthQueue;
+	private final LinkedHashSet<String> phrases;
+	private TextToSpeech tts;
+	private int initStatus;
+	private File voiceDir;
+	private String synthesizing;
+	private String synthesizingId;
+	private int synthCount;
+	private int nextKey;
+
+	public PhraseCache(final Context context, final BellEngine bellEngine, final EventLog events) {
+		this.context = context;
+		this.bellEngine = bellEngine;
+		this.events = events;
+		rootDir = new File(context.getCacheDir(), "phrases");
+		thread = new HandlerThread("phrase-cache");
+		thread.start();
+		handler = new Handler(thread.getLooper());
+		loadedKeys = new HashMap<>();
+		synthQueue = new ArrayDeque<>();
+		phrases = new LinkedHashSet<>();
+		initStatus = INIT_PENDING;
+		// keys of loaded phrases are negative, never a resource id
+		nextKey = -1;
+	}
+
+	/**
+	 * Gets the phrases of a session ready, the null ones skipped. The engine
+	 * is made on the first call, and the phrases of an earlier session not
+	 * used any more are unloaded.
+	 */
+	public synchronized void prepare(final String[] texts) {
+		phrases.clear();
+		for (final String text : texts) {
+			if (text != null)
+				phrases.add(text);
+		}
+		final Iterator<HashMap.Entry<String, Integer>> it = loadedKeys.entrySet().iterator();
+		while (it.hasNext()) {
+			final HashMap.Entry<String, Integer> entry = it.next();
+			if (!phrases.contains(entry.getKey())) {
+				bellEngine.unload(entry.getValue());
+				it.remove();
+			}
+		}
+		if (tts != null && initStatus != TextToSpeech.SUCCESS && initStatus != INIT_PENDING) {
+			// the engine failed to start, try a new one
+			tts.shutdown();
+			tts = null;
+		}
+		if (tts == null) {
+			initStatus = INIT_PENDING;
+			tts = new TextToSpeech(context, this);
+		} else if (initStatus == TextToSpeech.SUCCESS) {
+			handler.post(doPreparing);
+		}
+	}
+
+	@Override
+	public void onInit(final int status) {
+		events.record(SystemClock.elapsedRealtime(), EventLog.TTS_INIT, status);
+		Trace.beginSection("ppmt:ttsInit");
+		try {
+			init(status);
+		} finally {
+			Trace.endSection();
+		}
+	}
+
+	private void init(final int status) {
+		synchronized (this) {
+			initStatus = status;
+			if (tts == null) return;
+			if (status != TextToSpeech.SUCCESS) {
+				// let the next prepare() make a new engine
+				tts.shutdown();
+				tts = null;
+				return;
+			}
+			final String voiceName;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && tts.getDefaultVoice() != null) {
+				tts.setLanguage(tts.getDefaultVoice().getLocale());
+				voiceName = tts.getDefaultVoice().getName();
+			} else {
+				final Locale lang = tts.getDefaultLanguage();
+				tts.setLanguage(lang);
+				voiceName = lang.toString();
+			}
+			final String key = tts.getDefaultEngine() + "_" + voiceName;
+			voiceDir = new File(rootDir, key.replaceAll("[^A-Za-z0-9_.-]", "_"));
+			voiceDir.mkdirs();
+			tts.setOnUtteranceProgressListener(progressListener);
+		}
+		handler.post(doPreparing);
+	}
+
+	/** Plays the phrase as it was synthesized, and returns false if it is not ready. */
+	public boolean play(final String text) {
+		final Integer key;
+		synchronized (this) {
+			key = loadedKeys.get(text);
+		}
+		return key != null && bellEngine.play(key);
+	}
+
+	/**
+	 * Speaks the phrase by the engine, as it was not ready to be played.
+	 * Returns false if the engine cannot speak it.
+	 */
+	public synchronized boolean speak(final String text) {
+		if (tts == null || initStatus != TextToSpeech.SUCCESS) return false;
+		final int result;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+			result = tts.speak(text, TextToSpeech.QUEUE_FLUSH, null, text);
+		else
+			result = tts.speak(text, TextToSpeech.QUEUE_FLUSH, null);
+		requeueSynthesis();
+		return result == TextToSpeech.SUCCESS;
+	}
+
+	/** Stops the phrase being spoken, and keeps on with the phrases to be synthesized. */
+	public synchronized void stop() {
+		if (tts == null || initStatus != TextToSpeech.SUCCESS) return;
+		tts.stop();
+		requeueSynthesis();
+	}
+
+	/**
+	 * Puts the phrase being synthesized back to the head of the queue, as the
+	 * engine flushes it with the speech. Its late callback is then ignored,
+	 * for it comes with an id no more current.
+	 */
+	private void requeueSynthesis() {
+		if (synthesizing == null) return;
+		synthQueue.addFirst(synthesizing);
+		synthesizing = null;
+		synthesizingId = null;
+		handler.post(doSynthesizingNext);
+	}
+
+	public synchronized void release() {
+		if (tts != null)
+			tts.shutdown();
+		tts = null;
+		for (final int key : loadedKeys.values())
+			bellEngine.unload(key);
+		loadedKeys.clear();
+		synthQueue.clear();
+		thread.quit();
+	}
+
+	/** Loads the phrases found in the cache, and queues the others to be synthesized. */
+	private Runnable doPreparing = new Runnable() {
+		@Override
+		public void run() {
+			final String[] texts;
+			synchronized (PhraseCache.this) {
+				texts = phrases.toArray(new String[phrases.size()]);
+				synthQueue.clear();
+			}
+			for (final String text : texts) {
+				synchronized (PhraseCache.this) {
+					if (loadedKeys.containsKey(text)) continue;
+				}
+				final File file = getFile(text);
+				if (file.isFile()) {
+					load(text, file);
+				} else {
+					synchronized (PhraseCache.this) {
+						synthQueue.add(text);
+					}
+				}
+			}
+			synthesizeNext();
+		}
+	};
+
+	private synchronized File getFile(final String text) {
+		return new File(voiceDir, TrackCache.hash(text) + ".wav");
+	}
+
+	private File getTempFile(final String text) {
+		return new File(getFile(text).getPath() + ".tmp");
+	}
+
+	/** Decodes the phrase file and loads it into the bell engine, or deletes the file if it is bad. */
+	private void load(final String text, final File file) {
+		try {
+			final SoundBank.Sound sound = bellEngine.getSoundBank().decodeFile(file);
+			synchronized (this) {
+				if (tts == null) return;
+				final int key = nextKey--;
+				if (bellEngine.load(key, sound))
+					loadedKeys.put(text, key);
+			}
+		} catch (IOException | RuntimeException e) {
+			file.delete();
+		}
+	}
+
+	/** Synthesizes the next phrase of the queue, one at a time. */
+	private synchronized void synthesizeNext() {
+		if (tts == null || synthesizing != null) return;
+		final String text = synthQueue.poll();
+		if (text == null) return;
+		synthesizing = text;
+		synthesizingId = SYNTH_ID + synthCount++;
+		final File tmpFile = getTempFile(text);
+		final int result;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			result = tts.synthesizeToFile(text, null, tmpFile, synthesizingId);
+		} else {
+			final HashMap<String, String> params = new HashMap<>();
+			params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, synthesizingId);
+			result = tts.synthesizeToFile(text, params, tmpFile.getPath());
+		}
+		if (result != TextToSpeech.SUCCESS) {
+			synthesizing = null;
+			synthesizingId = null;
+			handler.post(doSynthesizingNext);
+		}
+	}
+
+	private Runnable doSynthesizingNext = new Runnable() {
+		@Override
+		public void run() {
+			synthesizeNext();
+		}
+	};
+
+	private void onSynthesized(final String id, final boolean success) {
+		final String text;
+		synchronized (this) {
+			if (!id.equals(synthesizingId)) return;
+			text = synthesizing;
+			synthesizing = null;
+			synthesizingId = null;
+		}
+		final File tmpFile = getTempFile(text);
+		final File file = getFile(text);
+		if (success && tmpFile.renameTo(file))
+			load(text, file);
+		else
+			tmpFile.delete();
+		synthesizeNext();
+	}
+
+	/** The synthesis was cut off by the engine, so it is done again later. */
+	private void onSynthesisStopped(final String id) {
+		synchronized (this) {
+			if (!id.equals(synthesizingId)) return;
+			getTempFile(synthesizing).delete();
+			if (phrases.contains(synthesizing))
+				synthQueue.add(synthesizing);
+			synthesizing = null;
+			synthesizingId = null;
+		}
+		synthesizeNext();
+	}
+
+	// called on a thread of the engine, go on on the own thread
+	private UtteranceProgressListener progressListener = new UtteranceProgressListener() {
+		@Override
+		public void onStart(final String id) {
+		}
+		@Override
+		public void onDone(final String id) {
+			post(id, true);
+		}
+		@Override
+		public void onError(final String id) {
+			post(id, false);
+		}
+		@Override
+		public void onStop(final String id, final boolean interrupted) {
+			if (id == null || !id.startsWith(SYNTH_ID)) return;
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					onSynthesisStopped(id);
+				}
+			});
+		}
+		private void post(final String id, final boolean success) {
+			if (id == null || !id.startsWith(SYNTH_ID)) return;
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					onSynthesized(id, success);
+				}
+			});
+		}
+	};
+}
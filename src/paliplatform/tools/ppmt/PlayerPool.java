@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.util.HashMap;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Keeps prepared MediaPlayers per raw sound resource.
+ * A player is created on first use, then rewound and reused,
+ * and it is released only by release() or releaseAll(), or once it
+ * has failed and its user has been told.
+ * Each resource has SLOTS players at most, so that a segment
+ * can be chained to the next one of the same sound. Each player made
+ * or released is recorded into the event log, by its resource.
+ */
+public class PlayerPool {
+	public static final int SLOTS = 2;
+	private final Context context;
+	private final EventLog events;
+	private final HashMap<Integer, MediaPlayer>[] playerMaps;
+	private int createdCount;
+	private MediaPlayer.OnErrorListener userErrorListener;
+
+	@SuppressWarnings("unchecked")
+	public PlayerPool(final Context context, final EventLog events) {
+		this.context = context;
+		this.events = events;
+		playerMaps = new HashMap[SLOTS];
+		for (int i = 0; i < SLOTS; i++)
+			playerMaps[i] = new HashMap<>();
+		createdCount = 0;
+	}
+
+	public MediaPlayer get(final int resId) {
+		return get(resId, 0);
+	}
+
+	/**
+	 * Returns a player of the resource in the given slot positioned
+	 * at the start, or null if the resource cannot be opened.
+	 */
+	public synchronized MediaPlayer get(final int resId, final int slot) {
+		final HashMap<Integer, MediaPlayer> playerMap = playerMaps[slot];
+		MediaPlayer player = playerMap.get(resId);
+		if (player != null) {
+			if (!rewind(player)) {
+				player.release();
+				events.record(SystemClock.elapsedRealtime(), EventLog.PLAYER_RELEASE, resId);
+				playerMap.remove(resId);
+				player = null;
+			}
+		}
+		if (player == null) {
+			player = MediaPlayer.create(context, resId);
+			if (player == null) return null;
+			player.setOnErrorListener(errorListener);
+			playerMap.put(resId, player);
+			createdCount++;
+			events.record(SystemClock.elapsedRealtime(), EventLog.PLAYER_CREATE, resId);
+		}
+		player.setOnCompletionListener(null);
+		try {
+			player.setNextMediaPlayer(null);
+		} catch (IllegalStateException e) {
+		}
+		return player;
+	}
+
+	/**
+	 * Pauses the player if it is playing and moves it back to the start,
+	 * leaving it ready for the next start().
+	 */
+	public boolean rewind(final MediaPlayer player) {
+		try {
+			if (player.isPlaying())
+				player.pause();
+			player.seekTo(0);
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	public synchronized void release(final int resId) {
+		for (final HashMap<Integer, MediaPlayer> playerMap : playerMaps) {
+			final MediaPlayer player = playerMap.remove(resId);
+			if (player != null) {
+				player.release();
+				events.record(SystemClock.elapsedRealtime(), EventLog.PLAYER_RELEASE, resId);
+			}
+		}
+	}
+
+	public synchronized void releaseAll() {
+		for (final HashMap<Integer, MediaPlayer> playerMap : playerMaps) {
+			for (final MediaPlayer player : playerMap.values()) {
+				player.release();
+				events.record(SystemClock.elapsedRealtime(), EventLog.PLAYER_RELEASE, 0);
+			}
+			playerMap.clear();
+		}
+	}
+
+	/**
+	 * Sets the listener told of a failed player, so that its user lets go of it.
+	 * The completion listener of the player is called after it, unless cleared.
+	 */
+	public void setOnErrorListener(final MediaPlayer.OnErrorListener listener) {
+		userErrorListener = listener;
+	}
+
+	/** Returns the number of native players currently held. */
+	public synchronized int getAliveCount() {
+		int count = 0;
+		for (final HashMap<Integer, MediaPlayer> playerMap : playerMaps)
+			count += playerMap.size();
+		return count;
+	}
+
+	/** Returns the number of native players created since the pool was made. */
+	public synchronized int getCreatedCount() {
+		return createdCount;
+	}
+
+	private MediaPlayer.OnErrorListener errorListener = new MediaPlayer.OnErrorListener() {
+		@Override
+		public boolean onError(final MediaPlayer mp, final int what, final int extra) {
+			// a player in the error state cannot be reused, so drop it
+			synchronized (PlayerPool.this) {
+				for (final HashMap<Integer, MediaPlayer> playerMap : playerMaps)
+					playerMap.values().remove(mp);
+			}
+			if (userErrorListener != null)
+				userErrorListener.onError(mp, what, extra);
+			// release it after its completion, which follows on this thread
+			new Handler(Looper.myLooper()).post(new Runnable() {
+				@Override
+				public void run() {
+					mp.release();
+					events.record(SystemClock.elapsedRealtime(), EventLog.PLAYER_RELEASE, 0);
+				}
+			});
+			return false;
+		}
+	};
+}
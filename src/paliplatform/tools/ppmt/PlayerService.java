@@ -16,355 +16,1108 @@
 
 package paliplatform.tools.ppmt;
 
-import java.util.List;
-import java.util.HashMap;
-import java.util.Arrays;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Service;
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.SystemClock;
 import android.os.IBinder;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.Trace;
 import android.media.MediaPlayer;
-import android.preference.PreferenceManager;
-import android.speech.tts.TextToSpeech;
 
+/**
+ * Runs the session. All player and session state is owned by one scheduler
+ * thread: the commands from the activity are posted to it as messages, and
+ * the player callbacks are delivered to it, so nothing here is touched by
+ * two threads at once. The activity reads the state from the snapshot
+ * published at each boundary. The timeline is walked by a SessionEngine,
+ * and this service is its Android output.
+ */
 public class PlayerService extends Service {
 	enum PlayState { SILENCE, BELL }
-	enum AlarmMode { BELL, TTS }
 	public static final int ONE_MINUTE_MILLIS = 60000;
+	public static final int MAX_INTERVAL = 180;
 	private static final int NOTI_ID = 1;
-	private Notification.Builder notiBuilder;
-	private SharedPreferences prefs;
+	public static final String STATS_FILE = "session_stats.csv";
+	public static final String JOURNAL_FILE = "sessions.journal";
+	public static final String CHECKPOINT_FILE = "session.checkpoint";
+	/** A restored session skips the bells overdue by more than this. */
+	private static final long MAX_RESTORE_LATE_MILLIS = 60000;
+	/** How far the wall clock may have been set since the start, before the session is taken as from another boot. */
+	private static final long MAX_CLOCK_SHIFT_MILLIS = 60000;
+	private static final long MAX_STATS_BYTES = 64 * 1024;
+	private static final int EVENT_LOG_SIZE = 256;
+	public static final String ACTION_PAUSE = "paliplatform.tools.ppmt.action.PAUSE";
+	public static final String ACTION_RESUME = "paliplatform.tools.ppmt.action.RESUME";
+	public static final String ACTION_STOP = "paliplatform.tools.ppmt.action.STOP";
+	private static final int MSG_START = 1;
+	private static final int MSG_PAUSE = 2;
+	private static final int MSG_RESUME = 3;
+	private static final int MSG_STOP = 4;
+	private static final int MSG_STOP_PLAYERS = 5;
+	private static final int MSG_RELEASE_PLAYERS = 6;
+	private static final int MSG_CLICK_DONE = 7;
+	private static final int MSG_PUBLISH = 8;
+	private static final int MSG_WATCHDOG = 9;
+	private static final int MSG_RESTORE = 10;
+	private HandlerThread schedulerThread;
+	private Handler scheduler;
+	private NotificationManager notiManager;
 	private IBinder playerServiceBinder;
+	private PlayerPool playerPool;
+	private BellEngine bellEngine;
+	private SilenceStream silenceStream;
+	private TrackCache trackCache;
+	private MediaPlayer trackPlayer;
+	private short[] clickPcm;
 	private MediaPlayer bellPlayer;
 	private MediaPlayer silencePlayer;
-	private TextToSpeech tts;
-	private boolean settingsEnabled;
+	private MediaPlayer nextPlayer;
+	private int nextOffset;
+	private PhraseCache phraseCache;
+	private Timeline timeline;
+	private String[] phraseTexts;
+	private ClickPlayer clickPlayer;
+	private TtsPlayer ttsPlayer;
 	private int interval;
-	private HashMap<Integer, Integer> intervalMap;
 	private int repeat;
 	private String sound;
 	private String endingBell;
 	private int clickOption;
 	private String preparation;
 	private int prepareMillis;
-	private PlayState currPlayState;
-	private boolean runningState;
-	private int currRepeat;
-	private int currPosition;
+	private boolean useStream;
+	private boolean useTrack;
+	private volatile boolean runningState;
+	private SessionEngine engine;
+	private volatile SessionStats stats;
+	private RecordFile statsFile;
+	private SessionJournal journal;
+	private int sessionPauses;
+	private int sessionStalls;
+	private boolean sessionRestored;
+	private SessionWatchdog watchdog;
+	private CheckpointFile checkpointFile;
+	private long sessionId;
+	private long sessionWallStart;
+	private long sessionElapsedStart;
+	private int sessionHash;
+	private boolean restoring;
+	private boolean forcedBoundary;
+	private final AtomicReference<SessionSnapshot> snapshot = new AtomicReference<>(SessionSnapshot.IDLE);
+	private final EventLog events = new EventLog(EVENT_LOG_SIZE);
+	private final ArrayList<SessionListener> sessionListeners = new ArrayList<>();
+	private Handler mainHandler;
+
+	public interface SessionListener {
+		/** Called on the main thread when the session has changed, i.e., at a boundary. */
+		void onSessionChanged(SessionSnapshot snapshot);
+	}
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		schedulerThread = new HandlerThread("scheduler", Process.THREAD_PRIORITY_AUDIO);
+		schedulerThread.start();
+		scheduler = new Handler(schedulerThread.getLooper(), schedulerCallback);
+		mainHandler = new Handler(Looper.getMainLooper());
 		playerServiceBinder = new PlayerServiceBinder(this);
-		currPlayState = PlayState.BELL;
+		playerPool = new PlayerPool(this, events);
+		playerPool.setOnErrorListener(playerErrorListener);
+		clickPlayer = new ClickPlayer();
+		ttsPlayer = new TtsPlayer();
+		bellEngine = BellEngine.acquire(this);
+		engine = new SessionEngine(ELAPSED_CLOCK, sessionOutput, engineListener);
 		runningState = false;
-		notiBuilder = new Notification.Builder(this)
-							.setSmallIcon(R.mipmap.ic_launcher)
-							.setContentTitle(getResources().getString(R.string.noti_message))
-							.setContentIntent(null);
-		prefs = PreferenceManager.getDefaultSharedPreferences(this);
-		intervalMap = new HashMap<>();
-		final List<String> intervalValues = Arrays.asList(getResources().getStringArray(R.array.interval_times_values));
-		for (final String s : intervalValues) {
-			final int intv = Integer.parseInt(s);
-			switch (intv) {
-				case 1: intervalMap.put(intv, R.raw.silence1_click); break;
-				case 5: intervalMap.put(intv, R.raw.silence5_click); break;
-				case 10: intervalMap.put(intv, R.raw.silence10_click); break;
-				case 15: intervalMap.put(intv, R.raw.silence15_click); break;
-				case 20: intervalMap.put(intv, R.raw.silence20_click); break;
+		notiManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		watchdog = new SessionWatchdog(this, PlayerService.class);
+		statsFile = new RecordFile(new File(getFilesDir(), STATS_FILE), SessionStats.HEADER, MAX_STATS_BYTES);
+		checkpointFile = new CheckpointFile(new File(getFilesDir(), CHECKPOINT_FILE));
+		journal = new SessionJournal(new File(getFilesDir(), JOURNAL_FILE));
+		final Settings settings = Settings.get(this);
+		preparation = settings.getPreparation();
+		prepareMillis = settings.getPrepareMillis();
+		trackCache = new TrackCache(this, bellEngine.getSoundBank());
+		Settings.addListener(prefsListener);
+		requestTrackRender();
+	}
+
+	private Handler.Callback schedulerCallback = new Handler.Callback() {
+		@Override
+		public boolean handleMessage(final Message msg) {
+			countCallback();
+			switch (msg.what) {
+				case MSG_START: handleStart(); break;
+				case MSG_PAUSE: handlePause(); break;
+				case MSG_RESUME: handleResume(); break;
+				case MSG_STOP: handleStop(); break;
+				case MSG_STOP_PLAYERS: handleStopPlayers((PlayState) msg.obj); break;
+				case MSG_RELEASE_PLAYERS: handleReleasePlayers(); break;
+				case MSG_CLICK_DONE: clickPlayer.proceed(); break;
+				case MSG_PUBLISH: publish(); break;
+				case MSG_WATCHDOG: checkStall(); break;
+				case MSG_RESTORE: handleRestore(); break;
+				default: return false;
 			}
+			return true;
 		}
-		preparation = prefs.getString("pref_preparation", "click");
-		prepareMillis = preparation.equals("no") ? 3000 : preparation.equals("gong") ? 20000 : 10000;
+	};
+
+	private SharedPreferences.OnSharedPreferenceChangeListener prefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
+			requestTrackRender();
+		}
+	};
+
+	/** Renders the session of the current settings ahead, if the rendered track is used. */
+	private void requestTrackRender() {
+		final Settings settings = Settings.get(this);
+		if (!settings.getBackend().equals("render")) return;
+		final String snd = settings.getSound();
+		// phrases cannot be rendered, such a session is streamed
+		if (snd.startsWith("tts")) return;
+		final int intv = settings.getInterval();
+		final int rept = settings.getRepeat();
+		final String ending = settings.getEndingBell();
+		final int click = settings.getClick();
+		final String prep = settings.getPreparation();
+		final Timeline tl = Timeline.compile(intv, rept, snd, ending, click, settings.getPrepareMillis());
+		trackCache.requestRender(TrackCache.keyOf(intv, rept, snd, ending, click, prep), tl, prep);
 	}
 
 	@Override
 	public IBinder onBind(final Intent intent) {
+		recordEvent(EventLog.BIND, 0);
 		return playerServiceBinder;
 	}
 
+	@Override
+	public boolean onUnbind(final Intent intent) {
+		recordEvent(EventLog.UNBIND, 0);
+		return super.onUnbind(intent);
+	}
+
+	/**
+	 * Prints the state and the last events, by
+	 * adb shell dumpsys activity service paliplatform.tools.ppmt/.PlayerService
+	 */
+	@Override
+	protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+		final long now = SystemClock.elapsedRealtime();
+		final SessionSnapshot snap = snapshot.get();
+		writer.println("running: " + runningState + ", paused: " + snap.isPaused() + ", repeat: " + snap.getRepeat(now)
+						+ "/" + repeat + ", stream: " + useStream + ", track: " + useTrack);
+		writer.println("players alive: " + playerPool.getAliveCount() + ", created: " + playerPool.getCreatedCount()
+						+ ", stalls: " + watchdog.getStallCount());
+		events.dump(writer, now);
+	}
+
+	private void recordEvent(final int type, final long arg) {
+		events.record(SystemClock.elapsedRealtime(), type, arg);
+	}
+
+	/** Takes the actions of the notification, so the activity is not needed. */
+	@Override
+	public int onStartCommand(final Intent intent, final int flags, final int startId) {
+		final String action = intent == null ? null : intent.getAction();
+		if (ACTION_PAUSE.equals(action)) {
+			pauseSession();
+		} else if (ACTION_RESUME.equals(action)) {
+			resumeSession();
+		} else if (ACTION_STOP.equals(action)) {
+			stopPlayers();
+			stopSession();
+			releasePlayers();
+		} else if (intent == null || SessionWatchdog.ACTION_WATCHDOG.equals(action)) {
+			// with no intent, the system has started us again after killing the process
+			scheduler.sendEmptyMessage(runningState ? MSG_WATCHDOG : MSG_RESTORE);
+		}
+		// started again if killed, to resume the session from its checkpoint
+		return START_STICKY;
+	}
+
 	@Override
 	public void onDestroy() {
-		if (bellPlayer != null)
-			bellPlayer.release();
-		if (silencePlayer != null)
-			silencePlayer.release();
-		if (tts != null)
-			tts.shutdown();
+		Settings.removeListener(prefsListener);
+		mainHandler.removeCallbacks(doNotifying);
+		sessionListeners.clear();
+		watchdog.cancel();
+		// release on the scheduler after the pending commands, then let it end
+		scheduler.post(doReleasing);
+		schedulerThread.quitSafely();
 		super.onDestroy();
 	}
 
+	private Runnable doReleasing = new Runnable() {
+		@Override
+		public void run() {
+			releaseTrackPlayer();
+			bellPlayer = null;
+			silencePlayer = null;
+			nextPlayer = null;
+			playerPool.releaseAll();
+			if (silenceStream != null)
+				silenceStream.release();
+			BellEngine.release();
+			if (phraseCache != null)
+				phraseCache.release();
+			// destroyed, not killed, so the session is not to be resumed
+			checkpointFile.clear();
+			checkpointFile.close();
+		}
+	};
+
+	/**
+	 * Starts a session with the current settings. The running state is
+	 * set at once, so the caller sees it before the scheduler gets to it.
+	 */
 	public void startSession() {
-		interval = Integer.parseInt(prefs.getString("pref_interval", "15"));
-		repeat = Integer.parseInt(prefs.getString("pref_repeat", "2"));
-		sound = prefs.getString("pref_sound", "tiny");
-		endingBell = prefs.getString("pref_ending_bell", "small");
-		clickOption = Integer.parseInt(prefs.getString("pref_click", "1"));
-		preparation = prefs.getString("pref_preparation", "click");
-		prepareMillis = preparation.equals("no") ? 3000 : preparation.equals("gong") ? 20000 : 10000;
-		currRepeat = 0;
 		runningState = true;
-		startPlayerTask();
-		startForeground(NOTI_ID, notiBuilder.build());
+		snapshot.set(SessionSnapshot.STARTING);
+		scheduler.sendEmptyMessage(MSG_START);
+	}
+
+	/**
+	 * Resumes the session of the checkpoint, if none is running, e.g.,
+	 * when the app is opened after the process was killed. The session
+	 * is taken as starting at once, and as over if there is none to resume.
+	 */
+	public void restoreSession() {
+		if (runningState) return;
+		snapshot.set(SessionSnapshot.STARTING);
+		scheduler.sendEmptyMessage(MSG_RESTORE);
 	}
 
 	public void pauseSession() {
-		if (silencePlayer != null) {
+		scheduler.sendEmptyMessage(MSG_PAUSE);
+	}
+
+	public void resumeSession() {
+		scheduler.sendEmptyMessage(MSG_RESUME);
+	}
+
+	public void stopSession() {
+		runningState = false;
+		snapshot.set(SessionSnapshot.IDLE);
+		scheduler.sendEmptyMessage(MSG_STOP);
+	}
+
+	/**
+	 * Releases all pooled players. Used when the session is over,
+	 * so no native player is kept between sessions.
+	 */
+	public void releasePlayers() {
+		scheduler.sendEmptyMessage(MSG_RELEASE_PLAYERS);
+	}
+
+	public void stopPlayers() {
+		stopPlayers(null);
+	}
+
+	public void stopPlayers(final PlayState which) {
+		scheduler.obtainMessage(MSG_STOP_PLAYERS, which).sendToTarget();
+	}
+
+	private void handleStart() {
+		// a session still playing, e.g., one resumed after the process was killed, is replaced
+		if (engine.isRunning()) {
+			handleStopPlayers(null);
+			stopEngine();
+		}
+		final Settings settings = Settings.get(this);
+		loadSession(settings);
+		final String backend = settings.getBackend();
+		// a session is numbered by its place in the journal, where it goes when it ends
+		sessionId = journal.readHeader().getCount() + 1;
+		sessionWallStart = System.currentTimeMillis();
+		sessionElapsedStart = SystemClock.elapsedRealtime();
+		sessionRestored = false;
+		stats = newStats(settings, backend);
+		useTrack = false;
+		if (backend.equals("render")) {
+			// never wait for rendering, stream the session if its track is not ready
+			useTrack = openTrackPlayer(trackCache.get(TrackCache.keyOf(interval, repeat, sound, endingBell, clickOption, preparation)));
+			if (!useTrack)
+				requestTrackRender();
+		}
+		// silence tracks exist only for the listed intervals
+		useStream = !useTrack && (!backend.equals("tracks") || getSilenceTrack(interval) == 0);
+		if (!runningState) return;
+		recordEvent(EventLog.SESSION_START, timeline.getTotalMillis());
+		// every bell has a fixed deadline on the monotonic clock
+		engine.start(timeline, useTrack);
+		if (runningState)
+			startForeground(NOTI_ID, buildNotification(snapshot.get()));
+	}
+
+	/** Takes the session settings, and makes its timeline and phrases. */
+	private void loadSession(final Settings settings) {
+		interval = settings.getInterval();
+		repeat = settings.getRepeat();
+		sound = settings.getSound();
+		endingBell = settings.getEndingBell();
+		clickOption = settings.getClick();
+		preparation = settings.getPreparation();
+		prepareMillis = settings.getPrepareMillis();
+		sessionHash = settings.getSessionHash();
+		sessionPauses = 0;
+		sessionStalls = 0;
+		timeline = Timeline.compile(interval, repeat, sound, endingBell, clickOption, prepareMillis);
+		phraseTexts = buildPhrases(timeline);
+		if (sound.startsWith("tts")) {
+			// one engine for all sessions, the phrases made ahead
+			if (phraseCache == null)
+				phraseCache = new PhraseCache(this, bellEngine, events);
+			phraseCache.prepare(phraseTexts);
+		}
+	}
+
+	private SessionStats newStats(final Settings settings, final String backend) {
+		return new SessionStats(System.currentTimeMillis(), SystemClock.elapsedRealtime(), SystemClock.uptimeMillis(),
+							Process.getElapsedCpuTime(), playerPool.getCreatedCount(),
+							bellEngine.getSoundBank().getDecodedBytes(),
+							backend + "|" + preparation + "|" + clickOption + "|"
+							+ (settings.isKeepScreenOn() ? 1 : 0) + "|" + interval + "x" + repeat);
+	}
+
+	/**
+	 * Resumes the session of the checkpoint, after the process was killed
+	 * and the service started again by the system or the backstop alarm.
+	 * The segment is played on to its deadline with no preparation, and
+	 * a restored session is always streamed, whatever its backend.
+	 */
+	private void handleRestore() {
+		if (runningState || engine.isRunning()) return;
+		final CheckpointFile.Checkpoint cp = checkpointFile.read();
+		if (cp == null) {
+			abandonRestore();
+			return;
+		}
+		final Settings settings = Settings.get(this);
+		final long now = SystemClock.elapsedRealtime();
+		// the monotonic clock starts over at boot, so the start moves against the wall clock
+		final long shift = (System.currentTimeMillis() - now) - (cp.getStartWallTime() - cp.getStartTime());
+		// a session already in the journal has ended, though its checkpoint was left
+		if (cp.getSessionId() != journal.readHeader().getCount() + 1
+				|| cp.getSettingsHash() != settings.getSessionHash() || now < cp.getStartTime()
+				|| Math.abs(shift) > MAX_CLOCK_SHIFT_MILLIS || !openStream()) {
+			abandonRestore();
+			return;
+		}
+		loadSession(settings);
+		sessionId = cp.getSessionId();
+		sessionWallStart = cp.getStartWallTime();
+		sessionElapsedStart = cp.getStartTime();
+		sessionRestored = true;
+		stats = newStats(settings, "restore");
+		useTrack = false;
+		useStream = true;
+		// the time paused before the process was killed is not counted
+		final long deadline = cp.isPaused() ? now + cp.getDeadline() - cp.getPauseStartTime() : cp.getDeadline();
+		runningState = true;
+		snapshot.set(SessionSnapshot.STARTING);
+		recordEvent(EventLog.SESSION_RESTORE, cp.getEvent());
+		restoring = true;
+		final boolean restored = engine.restore(timeline, cp.getEvent(), deadline, MAX_RESTORE_LATE_MILLIS);
+		restoring = false;
+		if (!restored) {
+			// all over while we were gone
+			runningState = false;
+			stats = null;
+			abandonRestore();
+			return;
+		}
+		if (!runningState) return;
+		if (cp.isPaused())
+			handlePause();
+		startForeground(NOTI_ID, buildNotification(snapshot.get()));
+	}
+
+	/** Drops the checkpoint, tells there is no session, and lets the service end once unbound. */
+	private void abandonRestore() {
+		checkpointFile.clear();
+		publish();
+		sessionRestored = false;
+		stopSelf();
+	}
+
+	/** Returns the silence track of the interval, or 0 if there is none. */
+	private static int getSilenceTrack(final int intv) {
+		switch (intv) {
+			case 1: return R.raw.silence1_click;
+			case 5: return R.raw.silence5_click;
+			case 10: return R.raw.silence10_click;
+			case 15: return R.raw.silence15_click;
+			case 20: return R.raw.silence20_click;
+			default: return 0;
+		}
+	}
+
+	private String[] buildPhrases(final Timeline tl) {
+		final String[] texts = new String[tl.size()];
+		final String loop = getResources().getString(R.string.tts_loop);
+		for (int i = 0; i < texts.length; i++) {
+			switch (tl.getPhrase(i)) {
+				case Timeline.PHRASE_PREPARE:
+					texts[i] = getResources().getString(R.string.tts_prepare);
+					break;
+				case Timeline.PHRASE_LOOP:
+					texts[i] = tl.getMinutes(i) + loop;
+					break;
+				case Timeline.PHRASE_LAST:
+					texts[i] = tl.getMinutes(i) + loop + getResources().getString(R.string.tts_last);
+					break;
+			}
+		}
+		return texts;
+	}
+
+	private boolean openTrackPlayer(final File file) {
+		if (file == null) return false;
+		releaseTrackPlayer();
+		trackPlayer = new MediaPlayer();
+		try {
+			trackPlayer.setDataSource(file.getPath());
+			trackPlayer.prepare();
+		} catch (IOException | RuntimeException e) {
+			releaseTrackPlayer();
+			return false;
+		}
+		trackPlayer.setOnCompletionListener(trackCompleteListener);
+		recordEvent(EventLog.PLAYER_CREATE, 0);
+		return true;
+	}
+
+	private void releaseTrackPlayer() {
+		if (trackPlayer != null) {
+			trackPlayer.release();
+			trackPlayer = null;
+			recordEvent(EventLog.PLAYER_RELEASE, 0);
+		}
+	}
+
+	private MediaPlayer.OnCompletionListener trackCompleteListener = new MediaPlayer.OnCompletionListener() {
+		@Override
+		public void onCompletion(final MediaPlayer mp) {
+			// the only callback of a rendered session
+			countCallback();
+			engine.end(true);
+		}
+	};
+
+	private void handlePause() {
+		final boolean wasPaused = engine.isPaused();
+		if (useTrack && trackPlayer != null) {
+			try {
+				trackPlayer.pause();
+				engine.pause();
+			} catch (IllegalStateException e) {
+			}
+		} else if (useStream && silenceStream != null) {
+			silenceStream.pause();
+			engine.pause();
+		} else if (silencePlayer != null) {
 			try {
 				silencePlayer.pause();
+				engine.pause();
 			} catch (IllegalStateException e) {
 			}
 		}
-		stopForeground(true);
+		if (!wasPaused && engine.isPaused()) {
+			sessionPauses++;
+			recordEvent(EventLog.PAUSE, engine.getCurrRepeat());
+		}
 	}
 
-	public void resumeSession() {
-		if (silencePlayer != null) {
+	private void handleResume() {
+		final boolean wasPaused = engine.isPaused();
+		if (useTrack && trackPlayer != null) {
+			try {
+				trackPlayer.start();
+				engine.resume();
+			} catch (IllegalStateException e) {
+			}
+		} else if (useStream && silenceStream != null) {
+			silenceStream.resume();
+			engine.resume();
+		} else if (silencePlayer != null) {
 			try {
 				silencePlayer.start();
+				engine.resume();
 			} catch (IllegalStateException e) {
 			}
 		}
-		startForeground(NOTI_ID, notiBuilder.build());
+		if (wasPaused && !engine.isPaused())
+			recordEvent(EventLog.RESUME, engine.getCurrRepeat());
 	}
 
-	public void stopSession() {
+	private SessionEngine.Listener engineListener = new SessionEngine.Listener() {
+		@Override
+		public void onSessionChanged() {
+			publish();
+			saveCheckpoint();
+		}
+		@Override
+		public void onDrift(final int event, final int drift) {
+			if (SessionWatchdog.isStall(drift)) {
+				watchdog.recordStall(event, drift, forcedBoundary);
+				sessionStalls++;
+				recordEvent(EventLog.STALL, drift);
+			}
+			forcedBoundary = false;
+		}
+		@Override
+		public void onSessionEnd(final boolean completed) {
+			recordEvent(EventLog.SESSION_END, completed ? 1 : 0);
+			finishStats(completed);
+			runningState = false;
+			publish();
+			handleStop();
+		}
+	};
+
+	private static final SessionEngine.Clock ELAPSED_CLOCK = new SessionEngine.Clock() {
+		@Override
+		public long now() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	/** Saves where the session is, in silence and on pause, to resume it if the process is killed. */
+	private void saveCheckpoint() {
+		if (!runningState || !engine.isRunning() || !engine.isInSilence()) return;
+		final long pauseStart = engine.getPauseStartTime();
+		final int event = engine.getRepeatAt(pauseStart > 0 ? pauseStart : SystemClock.elapsedRealtime());
+		checkpointFile.write(sessionId, sessionWallStart, sessionElapsedStart, event, engine.getDeadline(event),
+							pauseStart, sessionHash);
+	}
+
+	private void handleStop() {
+		stopEngine();
 		stopForeground(true);
-		runningState = false;
+		stopRestored();
 	}
 
-	public void stopPlayers() {
-		stopPlayers(null);
+	private void stopEngine() {
+		if (engine.isRunning())
+			recordEvent(EventLog.SESSION_END, 0);
+		finishStats(false);
+		engine.stop();
+		checkpointFile.clear();
+		watchdog.cancel();
+		if (silenceStream != null)
+			silenceStream.stop();
 	}
 
-	public void stopPlayers(final PlayState which) {
-		try {
-			if (which == PlayState.BELL || which == null) {
-				if (bellPlayer != null) {
-					bellPlayer.stop();
-					bellPlayer = null;
+	/** Lets the service end once unbound, if it was started again only to resume a session. */
+	private void stopRestored() {
+		if (!sessionRestored) return;
+		sessionRestored = false;
+		stopSelf();
+	}
+
+	private void countCallback() {
+		final SessionStats st = stats;
+		if (st != null)
+			st.countCallback();
+	}
+
+	/** Counts a refresh of the timer display into the session stats. */
+	public void countUiRefresh() {
+		final SessionStats st = stats;
+		if (st != null)
+			st.countUiRefresh();
+	}
+
+	/** Returns the stats of the current or the last session, or null. */
+	public SessionStats getSessionStats() {
+		return stats;
+	}
+
+	private void finishStats(final boolean completed) {
+		if (stats == null || stats.isFinished()) return;
+		final long now = SystemClock.elapsedRealtime();
+		final long[] deadlines = engine.getDeadlines();
+		final long overrun = completed && deadlines != null ? now - deadlines[deadlines.length - 1] : 0;
+		stats.finish(now, SystemClock.uptimeMillis(), Process.getElapsedCpuTime(), playerPool.getCreatedCount(),
+					bellEngine.getSoundBank().getDecodedBytes(), overrun, completed);
+		statsFile.append(stats.toRecord());
+		appendJournal(now, completed);
+	}
+
+	/** Logs the session into the history. The time paused is how far the pauses have moved the last deadline. */
+	private void appendJournal(final long now, final boolean completed) {
+		final long[] deadlines = engine.getDeadlines();
+		if (deadlines == null || timeline == null) return;
+		final long actual = now - sessionElapsedStart;
+		long paused = deadlines[deadlines.length - 1] - sessionElapsedStart - timeline.getTotalMillis();
+		if (engine.isPaused())
+			paused += now - engine.getPauseStartTime();
+		journal.append(new SessionJournal.Entry(sessionWallStart, TimeZone.getDefault().getOffset(sessionWallStart) / 60000,
+							timeline.getTotalMillis(), actual, Math.max(0, Math.min(actual, paused)), interval, repeat,
+							sessionPauses, sessionStalls, completed, sessionRestored));
+	}
+
+	private void handleReleasePlayers() {
+		releaseTrackPlayer();
+		bellPlayer = null;
+		silencePlayer = null;
+		nextPlayer = null;
+		playerPool.releaseAll();
+	}
+
+	private void handleStopPlayers(final PlayState which) {
+		if (which == PlayState.BELL || which == null) {
+			bellEngine.stop();
+			if (bellPlayer != null) {
+				bellPlayer.setOnCompletionListener(null);
+				playerPool.rewind(bellPlayer);
+				bellPlayer = null;
+			}
+		}
+		// a phrase being spoken is not needed any more, those being made are kept
+		if (which == null && phraseCache != null)
+			phraseCache.stop();
+		if (which == PlayState.SILENCE || which == null) {
+			if (trackPlayer != null) {
+				try {
+					trackPlayer.pause();
+				} catch (IllegalStateException e) {
 				}
 			}
-			if (which == PlayState.SILENCE || which == null) {
-				if (silencePlayer != null) {
-					silencePlayer.stop();
-					silencePlayer = null;
+			if (silencePlayer != null) {
+				silencePlayer.setOnCompletionListener(null);
+				try {
+					silencePlayer.setNextMediaPlayer(null);
+				} catch (IllegalStateException e) {
 				}
+				playerPool.rewind(silencePlayer);
+				silencePlayer = null;
+			}
+			if (nextPlayer != null) {
+				nextPlayer.setOnCompletionListener(null);
+				playerPool.rewind(nextPlayer);
+				nextPlayer = null;
 			}
-		} catch (IllegalStateException e) {
 		}
 	}
 
-	private void startPlayerTask() {
-		final Thread thread = new Thread(null, doThreadProcessing, "player");
-		thread.start();
-	}
+	/**
+	 * Lets go of a failed player, which the pool releases after this. A player
+	 * playing then completes, so the session moves on as if it had ended.
+	 */
+	private MediaPlayer.OnErrorListener playerErrorListener = new MediaPlayer.OnErrorListener() {
+		@Override
+		public boolean onError(final MediaPlayer mp, final int what, final int extra) {
+			if (mp == nextPlayer) {
+				// not started yet, a new one is started when the segment ends
+				mp.setOnCompletionListener(null);
+				if (silencePlayer != null) {
+					try {
+						silencePlayer.setNextMediaPlayer(null);
+					} catch (IllegalStateException e) {
+					}
+				}
+				nextPlayer = null;
+			} else if (mp == silencePlayer) {
+				silencePlayer = null;
+				// chained to the failed one, it would not start by itself
+				if (nextPlayer != null) {
+					nextPlayer.setOnCompletionListener(null);
+					playerPool.rewind(nextPlayer);
+					nextPlayer = null;
+				}
+			} else if (mp == bellPlayer) {
+				bellPlayer = null;
+			}
+			return false;
+		}
+	};
 
-	private Runnable doThreadProcessing = new Runnable() {
+	private MediaPlayer.OnCompletionListener soundCompleteListener = new MediaPlayer.OnCompletionListener() {
 		@Override
-		public void run() {
-			silenceAndRing();
+		public void onCompletion(final MediaPlayer mp) {
+			countCallback();
+			alarm();
 		}
 	};
 
-	private void silenceAndRing() {
+	private void alarm() {
 		if (!runningState) return;
-		if (currRepeat == 0) {
-			prepare();
-		} else {
-			if (currRepeat <= repeat) {
-				silence();
+		Trace.beginSection("ppmt:alarm");
+		recordEvent(EventLog.SEGMENT_END, engine.getCurrRepeat());
+		engine.segmentEnded();
+		Trace.endSection();
+	}
+
+	private SessionEngine.Output sessionOutput = new SessionEngine.Output() {
+		@Override
+		public void startSegment(final int event) {
+			recordEvent(EventLog.SEGMENT_START, event);
+			if (useTrack) {
+				trackPlayer.start();
+				publish();
+			} else if (event == 0 && !restoring) {
+				prepare();
 			} else {
-				currRepeat = 0;
-				stopSession();
+				silence();
 			}
 		}
-	}
+		@Override
+		public void ring(final int event) {
+			Trace.beginSection("ppmt:ring");
+			recordEvent(EventLog.RING, event);
+			clickPlayer.play(event);
+			Trace.endSection();
+		}
+	};
 
-	private MediaPlayer.OnCompletionListener soundCompleteListener = new MediaPlayer.OnCompletionListener() {
+	private SilenceStream.Listener streamListener = new SilenceStream.Listener() {
 		@Override
-		public void onCompletion(final MediaPlayer mp) {
+		public void onSegmentEnd() {
+			countCallback();
 			alarm();
 		}
 	};
 
-	private void alarm() {
-		currPlayState = PlayState.BELL;
-		if (currRepeat == 0) {
-			if (sound.startsWith("tts")) {
-				final String phrase = getResources().getString(R.string.tts_prepare);
-				new TtsPlayer(phrase).speak();
-			}
-		} else {
-			switch (clickOption) {
-				case 0:
-					if (sound.startsWith("tts")) {
-						final int mins = currRepeat * interval;
-						final String phrase = mins + getResources().getString(R.string.tts_loop);
-						if (currRepeat == repeat) {
-							if (endingBell.equals("no")) {
-								final String lastPhrase = phrase + getResources().getString(R.string.tts_last);
-								new TtsPlayer(lastPhrase).speak();
-							} else {
-								ring(endingBell);
-							}
-						} else {
-							new TtsPlayer(phrase).speak();
-						}
-					} else {
-						if (currRepeat == repeat && !endingBell.equals("no"))
-							ring(endingBell);
-						else if (!sound.equals("no"))
-							ring(sound);
-					}
-					break;
-				case 1:
-					if (sound.startsWith("tts")) {
-						final int mins = currRepeat * interval;
-						final String phrase = mins + getResources().getString(R.string.tts_loop);
-						if (currRepeat == repeat) {
-							if (endingBell.equals("no")) {
-								final String lastPhrase = phrase + getResources().getString(R.string.tts_last);
-								new ClickPlayer(2, lastPhrase, AlarmMode.TTS).play();
-							} else {
-								new ClickPlayer(2, endingBell, AlarmMode.BELL).play();
-							}
-						} else {
-							new TtsPlayer(phrase).speak();
-						}
-					} else {
-						if (currRepeat == repeat) {
-							if (endingBell.equals("no"))
-								new ClickPlayer(2, sound, AlarmMode.BELL).play();
-							else
-								new ClickPlayer(2, endingBell, AlarmMode.BELL).play();
-						} else {
-							if (!sound.equals("no"))
-								ring(sound);
-						}
-					}
-					break;
-				case 2:
-				case 3:
-				case 4:
-				case 5:
-				case 6:
-					final int clickCount = currRepeat % clickOption;
-					final int clickAdded = clickCount == 0 ? clickOption - 1 : clickCount - 1;
-					if (sound.startsWith("tts")) {
-						final int mins = currRepeat * interval;
-						final String phrase = mins + getResources().getString(R.string.tts_loop);
-						if (currRepeat == repeat) {
-							if (endingBell.equals("no")) {
-								final String lastPhrase = phrase + getResources().getString(R.string.tts_last);
-								new ClickPlayer(clickAdded, lastPhrase, AlarmMode.TTS).play();
-							} else {
-								new ClickPlayer(clickAdded, endingBell, AlarmMode.BELL).play();
-							}
-						} else {
-							new ClickPlayer(clickAdded, phrase, AlarmMode.TTS).play();
-						}
-					} else {
-						final String bell = currRepeat == repeat
-											? endingBell.equals("no") ? sound : endingBell 
-											: sound;
-						new ClickPlayer(clickAdded, bell, AlarmMode.BELL).play();
-					}
-					break;
-			}
+	private void prepare() {
+		Trace.beginSection("ppmt:prepare");
+		try {
+			startPreparation();
+		} finally {
+			Trace.endSection();
 		}
-		currRepeat++;
-		silenceAndRing();
 	}
 
-	private void prepare() {
-		currPlayState = PlayState.SILENCE;
+	private void startPreparation() {
+		if (useStream) {
+			if (startStream()) return;
+			if (getSilenceTrack(interval) == 0) {
+				engine.end(false);
+				return;
+			}
+			// cannot stream, go on with the silence tracks
+			useStream = false;
+		}
 		final int sndId = preparation.equals("gong") ? R.raw.prepare_gong
 							: preparation.equals("melody") ? R.raw.prepare_melody
 							: preparation.equals("click") ? R.raw.prepare_click
 							: R.raw.prepare_3sec;
-		silencePlayer = MediaPlayer.create(this, sndId);
-		silencePlayer.setOnCompletionListener(soundCompleteListener);
-		silencePlayer.start();
+		startSilence(sndId);
 	}
 
 	private void silence() {
-		currPlayState = PlayState.SILENCE;
-		silencePlayer = MediaPlayer.create(this, intervalMap.get(interval));
-		silencePlayer.setOnCompletionListener(soundCompleteListener);
-		silencePlayer.start();
+		Trace.beginSection("ppmt:silence");
+		if (useStream)
+			startStreamSegment();
+		else
+			startSilence(getSilenceTrack(interval));
+		Trace.endSection();
 	}
 
-	public int getCurrRepeat() {
-		return currRepeat;
+	/** Makes the stream, and loads the click ending its segments. Returns false if it cannot. */
+	private boolean openStream() {
+		try {
+			final SoundBank.Sound click = bellEngine.getSoundBank().get(R.raw.click);
+			clickPcm = click.getPcm();
+			if (silenceStream == null)
+				silenceStream = new SilenceStream(click.getSampleRate(), scheduler.getLooper(), streamListener);
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+		return true;
 	}
 
-	public PlayState getCurrPlayState() {
-		return currPlayState;
+	private boolean startStream() {
+		if (!openStream()) return false;
+		try {
+			final SoundBank soundBank = bellEngine.getSoundBank();
+			// only the melody and the gong need decoding, the rest is generated
+			if (preparation.equals("gong"))
+				silenceStream.queue(soundBank.get(R.raw.prepare_gong).getPcm());
+			else if (preparation.equals("melody"))
+				silenceStream.queue(soundBank.get(R.raw.prepare_melody).getPcm());
+			else if (preparation.equals("click"))
+				silenceStream.queue(prepareMillis, clickPcm);
+			else
+				silenceStream.queue(prepareMillis, null);
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+		silenceStream.start();
+		startStreamSegment();
+		return true;
 	}
 
-	public boolean isRunning() {
-		return runningState;
+	private void startStreamSegment() {
+		if (!silenceStream.isRunning()) {
+			// restarted after a stall, the segment now playing ends on its deadline
+			silenceStream.queue(Math.max(0, engine.getDeadline(engine.getCurrRepeat()) - SystemClock.elapsedRealtime()), clickPcm);
+			silenceStream.start();
+		}
+		final long startTime = SystemClock.elapsedRealtime() - silenceStream.getPositionMillis();
+		engine.segmentStarted(startTime, startTime + silenceStream.getDurationMillis());
+		final int next = engine.getCurrRepeat() + 1;
+		if (next <= repeat) {
+			// size the next segment to end on its deadline, not just one interval later
+			final long length = engine.getDeadline(next) - engine.getSegmentEndTime();
+			silenceStream.queue(Math.max(length, interval * ONE_MINUTE_MILLIS / 2), clickPcm);
+		}
 	}
 
-	public int getCurrPosition() {
-		if (currPlayState == PlayState.BELL) return -1;
-		int pos = -1;
-		try {
-			if (silencePlayer != null) {
+	private void startSilence(final int sndId) {
+		final long now = SystemClock.elapsedRealtime();
+		if (nextPlayer != null) {
+			// already started by the previous segment at its end
+			silencePlayer = nextPlayer;
+			nextPlayer = null;
+			int pos = nextOffset;
+			try {
 				pos = silencePlayer.getCurrentPosition();
+			} catch (IllegalStateException e) {
 			}
-		} catch (IllegalStateException e) {
-			pos = -1;
+			engine.segmentStarted(now - (pos - nextOffset), now - pos + silencePlayer.getDuration());
+		} else {
+			final int event = engine.getCurrRepeat();
+			silencePlayer = playerPool.get(sndId, event % PlayerPool.SLOTS);
+			if (silencePlayer == null) {
+				engine.end(false);
+				return;
+			}
+			silencePlayer.setOnCompletionListener(soundCompleteListener);
+			// skip the part of the silence we are late for
+			final int late = event == 0 ? 0 : trimOffset(now - engine.getDeadline(event - 1), silencePlayer.getDuration());
+			if (late > 0)
+				silencePlayer.seekTo(late);
+			silencePlayer.start();
+			engine.segmentStarted(now, now + silencePlayer.getDuration() - late);
 		}
-		return pos;
+		queueNextSilence();
 	}
 
-	public int getDuration() {
-		if (currPlayState == PlayState.BELL) return -1;
-		int dur = -1;
-		if (silencePlayer != null) {
-			if (currRepeat == 0) {
-				dur = prepareMillis;
+	private void queueNextSilence() {
+		final int curr = engine.getCurrRepeat();
+		final int next = curr + 1;
+		if (next > repeat) return;
+		nextPlayer = playerPool.get(getSilenceTrack(interval), next % PlayerPool.SLOTS);
+		if (nextPlayer == null) return;
+		nextPlayer.setOnCompletionListener(soundCompleteListener);
+		// a track cannot be stretched, but it can be trimmed if this segment ends late
+		nextOffset = trimOffset(engine.getSegmentEndTime() - engine.getDeadline(curr), nextPlayer.getDuration());
+		if (nextOffset > 0)
+			nextPlayer.seekTo(nextOffset);
+		try {
+			silencePlayer.setNextMediaPlayer(nextPlayer);
+		} catch (IllegalStateException | IllegalArgumentException e) {
+			// fall back to starting it from the completion callback
+			nextPlayer.setOnCompletionListener(null);
+			nextPlayer = null;
+		}
+	}
+
+	private int trimOffset(final long late, final int duration) {
+		if (late <= 0) return 0;
+		return (int) Math.min(late, duration / 2);
+	}
+
+	/** Keeps the backstop alarm on the deadline of the segment now in silence. */
+	private void updateWatchdog() {
+		// a rendered track is played by the media server, which is not frozen with us
+		if (!runningState || useTrack || engine.isPaused() || !engine.isInSilence())
+			watchdog.cancel();
+		else
+			watchdog.arm(engine.getDeadline(engine.getCurrRepeat()));
+	}
+
+	/**
+	 * Called by the backstop alarm. If the segment now in silence is overdue,
+	 * the process has been held back, so the segment is cut and the bell rung now.
+	 */
+	private void checkStall() {
+		if (!runningState || useTrack || engine.isPaused() || !engine.isInSilence()) return;
+		final long deadline = engine.getDeadline(engine.getCurrRepeat());
+		if (!SessionWatchdog.isDue(SystemClock.elapsedRealtime() - deadline)) {
+			// woken up too early, so the alarm time is still ahead
+			watchdog.arm(deadline);
+			return;
+		}
+		forcedBoundary = true;
+		if (useStream)
+			silenceStream.stop();
+		else
+			handleStopPlayers(PlayState.SILENCE);
+		alarm();
+	}
+
+	/** Publishes the state of the session for the readers on other threads. */
+	private void publish() {
+		if (!runningState || !engine.isRunning())
+			snapshot.set(runningState ? SessionSnapshot.STARTING : SessionSnapshot.IDLE);
+		else
+			snapshot.set(new SessionSnapshot(true, !engine.isInSilence(), engine.getCurrRepeat(),
+								engine.getSessionStartTime(), engine.getDeadlines(), engine.getPauseStartTime(), useTrack));
+		mainHandler.removeCallbacks(doNotifying);
+		mainHandler.post(doNotifying);
+		updateWatchdog();
+		scheduler.removeMessages(MSG_PUBLISH);
+		if (runningState && engine.isRunning()) {
+			final SessionSnapshot snap = snapshot.get();
+			notiManager.notify(NOTI_ID, buildNotification(snap));
+			// a rendered session has no boundary callbacks, so wake up at its next deadline
+			if (useTrack && !snap.isPaused()) {
+				final long now = SystemClock.elapsedRealtime();
+				if (snap.getSegmentEnd(now) < snap.getSessionEnd())
+					scheduler.sendEmptyMessageDelayed(MSG_PUBLISH, snap.getSegmentRemainingMillis(now) + 1);
+			}
+		}
+	}
+
+	/**
+	 * Builds the notification of the session. The remaining time is shown by
+	 * the chronometer of the system, so it needs no update until the next boundary.
+	 */
+	private Notification buildNotification(final SessionSnapshot snap) {
+		final long now = SystemClock.elapsedRealtime();
+		final Notification.Builder builder = new Notification.Builder(this)
+							.setSmallIcon(R.mipmap.ic_launcher)
+							.setOngoing(true)
+							.setOnlyAlertOnce(true)
+							.setContentIntent(null);
+		String text = getResources().getString(R.string.noti_repeat, snap.getRepeat(now), repeat);
+		if (snap.isPaused()) {
+			builder.setContentTitle(getResources().getString(R.string.noti_paused))
+					.setShowWhen(false)
+					.addAction(android.R.drawable.ic_media_play, getResources().getString(R.string.resume),
+								serviceIntent(ACTION_RESUME));
+		} else {
+			final long wallNow = System.currentTimeMillis();
+			final long remain = Math.max(0, snap.getSessionRemainingMillis(now));
+			builder.setContentTitle(getResources().getString(R.string.noti_message))
+					.setShowWhen(true)
+					.setUsesChronometer(true)
+					.addAction(android.R.drawable.ic_media_pause, getResources().getString(R.string.pause),
+								serviceIntent(ACTION_PAUSE));
+			if (setChronometerCountDown(builder)) {
+				builder.setWhen(wallNow + remain);
 			} else {
-				try {
-					dur = silencePlayer.getDuration();
-				} catch (IllegalStateException e) {
-					dur = -1;
-				}
+				// count up from the session start, and tell the end time
+				builder.setWhen(wallNow - (snap.getSessionEnd() - snap.getSessionStart() - remain));
+				text += " " + getResources().getString(R.string.noti_ends,
+								DateFormat.getTimeInstance(DateFormat.SHORT).format(new Date(wallNow + remain)));
 			}
 		}
-		return dur;
+		builder.setContentText(text)
+				.addAction(android.R.drawable.ic_menu_close_clear_cancel, getResources().getString(R.string.stop),
+							serviceIntent(ACTION_STOP));
+		return builder.build();
 	}
 
-	private void ring(final String bell) {
-		final int bellId = getBell(bell);
-		if (bellId == -1) return;
-		bellPlayer = MediaPlayer.create(this, bellId);
-		bellPlayer.start();
+	private PendingIntent serviceIntent(final String action) {
+		final Intent intent = new Intent(this, PlayerService.class).setAction(action);
+		return PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
 	}
 
-	private int getBell(final String snd) {
-		final int bell;
-		if ("tiny".equals(snd)) {
-			bell = R.raw.bell_tiny;
-		} else if ("small".equals(snd)) {
-			bell = R.raw.bell_small;
-		} else if ("large".equals(snd)) {
-			bell = R.raw.bell_large;
-		} else {
-			bell = -1;
+	/** Makes the chronometer count down, which is there since Android 7.0 (API 24). */
+	private static boolean setChronometerCountDown(final Notification.Builder builder) {
+		if (Build.VERSION.SDK_INT < 24) return false;
+		try {
+			Notification.Builder.class.getMethod("setChronometerCountDown", boolean.class).invoke(builder, true);
+			return true;
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	private Runnable doNotifying = new Runnable() {
+		@Override
+		public void run() {
+			final SessionSnapshot snap = snapshot.get();
+			for (final SessionListener listener : new ArrayList<>(sessionListeners))
+				listener.onSessionChanged(snap);
 		}
-		return bell;
+	};
+
+	/** Returns the state of the session at its last boundary. */
+	public SessionSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/** Adds a listener of the boundaries. Called on the main thread. */
+	public void addSessionListener(final SessionListener listener) {
+		if (!sessionListeners.contains(listener))
+			sessionListeners.add(listener);
+	}
+
+	public void removeSessionListener(final SessionListener listener) {
+		sessionListeners.remove(listener);
+	}
+
+	/** Returns the drift of each boundary from its deadline, in milliseconds. */
+	public int[] getBoundaryDrifts() {
+		return engine.getBoundaryDrifts();
 	}
 
+	/** Returns the gap in milliseconds between the last two segments. */
+	public int getLastBoundaryGap() {
+		return engine.getLastBoundaryGap();
+	}
+
+	public int getMaxBoundaryGap() {
+		return engine.getMaxBoundaryGap();
+	}
+
+	public long getTotalBoundaryGap() {
+		return engine.getTotalBoundaryGap();
+	}
+
+	public int getBoundaryCount() {
+		return engine.getBoundaryCount();
+	}
+
+	public int getAlivePlayerCount() {
+		return playerPool.getAliveCount();
+	}
+
+	public BellEngine getBellEngine() {
+		return bellEngine;
+	}
+
+	public int getCurrRepeat() {
+		return snapshot.get().getRepeat(SystemClock.elapsedRealtime());
+	}
+
+	public PlayState getCurrPlayState() {
+		return snapshot.get().isBell() ? PlayState.BELL : PlayState.SILENCE;
+	}
+
+	public boolean isRunning() {
+		return snapshot.get().isRunning();
+	}
+
+	private static final int[] BELL_SOUNDS = { -1, R.raw.bell_tiny, R.raw.bell_small, R.raw.bell_large };
+	private static final int PHRASE_FALLBACK_BELL = R.raw.bell_small;
+
 	// inner classes
 	public class PlayerServiceBinder extends Binder {
 		private PlayerService service;
@@ -376,46 +1129,30 @@ public class PlayerService extends Service {
 		}
 	}
 
-	public class TtsPlayer implements TextToSpeech.OnInitListener {
-		private final String phrase;
-		public TtsPlayer(final String text) {
-			phrase = text;
-		}
-		public void speak() {
-			stopPlayers(PlayState.BELL);
-			tts = new TextToSpeech(PlayerService.this, this);
-		}
-		@Override
-		public void onInit(final int status) {
-			if (status == TextToSpeech.SUCCESS) {
-				final java.util.Locale lang;
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-					lang = tts.getDefaultVoice().getLocale();
-					tts.setLanguage(lang);
-					tts.speak(phrase, TextToSpeech.QUEUE_FLUSH, null, phrase);
-				} else {
-					lang = tts.getDefaultLanguage();
-					tts.setLanguage(lang);
-					tts.speak(phrase, TextToSpeech.QUEUE_FLUSH, null);
-				}
-			} else if (status == TextToSpeech.ERROR) {
-				tts.shutdown();
-			}
+	/**
+	 * Plays a phrase synthesized ahead, or speaks it if it is not ready.
+	 * Returns false if the phrase can be neither played nor spoken.
+	 */
+	public class TtsPlayer {
+		public boolean speak(final String text) {
+			handleStopPlayers(PlayState.BELL);
+			if (phraseCache == null) return false;
+			return phraseCache.play(text) || phraseCache.speak(text);
 		}
 	}
 
+	/**
+	 * Plays the leading clicks of a timeline event, then its bell or phrase.
+	 * One instance is reused for all events.
+	 */
 	public class ClickPlayer {
-		private final int totalClicks;
-		private final String bellOrPhrase;
-		private AlarmMode mode;
+		private int event;
+		private int totalClicks;
 		private int currClick;
-		public ClickPlayer(final int total, final String param, final AlarmMode amode) {
-			mode = amode;
-			totalClicks = total < 0 ? 0 : total;
-			bellOrPhrase = param;
+		public void play(final int index) {
+			event = index;
+			totalClicks = timeline.getClickCount(index);
 			currClick = 0;
-		}
-		public void play() {
 			proceed();
 		}
 		private void proceed() {
@@ -423,33 +1160,41 @@ public class PlayerService extends Service {
 				playClick();
 				currClick++;
 			} else {
-				if (mode == AlarmMode.TTS) {
-					playTTS();
-				} else {
-					if (!bellOrPhrase.equals("no"))
-						playBell();
+				if (timeline.getPhrase(event) != Timeline.PHRASE_NONE) {
+					// without the speech engine, the boundary is still marked
+					if (!ttsPlayer.speak(phraseTexts[event]))
+						playBell(PHRASE_FALLBACK_BELL);
+				} else if (timeline.getBell(event) != Timeline.BELL_NONE) {
+					playBell(BELL_SOUNDS[timeline.getBell(event)]);
 				}
 			}
 		}
 		private MediaPlayer.OnCompletionListener clickCompleteListener = new MediaPlayer.OnCompletionListener() {
 			@Override
 			public void onCompletion(final MediaPlayer mp) {
+				countCallback();
 				proceed();
 			}
 		};
+		private Runnable clickDone = new Runnable() {
+			@Override
+			public void run() {
+				// the engine calls back on the main thread
+				scheduler.sendEmptyMessage(MSG_CLICK_DONE);
+			}
+		};
 		private void playClick() {
-			bellPlayer = MediaPlayer.create(PlayerService.this, R.raw.click);
+			if (bellEngine.play(R.raw.click, clickDone)) return;
+			bellPlayer = playerPool.get(R.raw.click);
+			if (bellPlayer == null) return;
 			bellPlayer.setOnCompletionListener(clickCompleteListener);
 			bellPlayer.start();
 		}
-		private void playBell() {
-			final int bellId = getBell(bellOrPhrase);
-			if (bellId == -1) return;
-			bellPlayer = MediaPlayer.create(PlayerService.this, bellId);
-			bellPlayer.start();
-		}
-		private void playTTS() {
-			new TtsPlayer(bellOrPhrase).speak();
+		private void playBell(final int bellId) {
+			if (bellEngine.play(bellId)) return;
+			bellPlayer = playerPool.get(bellId);
+			if (bellPlayer != null)
+				bellPlayer.start();
 		}
 	}
 }
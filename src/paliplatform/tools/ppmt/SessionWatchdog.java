@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.File;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+/**
+ * Watches the session for stalls, e.g., when the process is frozen by
+ * the power management of the system. An exact alarm is set a little
+ * after each deadline, so the service is woken up even if its own
+ * callbacks are held back, and each stall is logged with the device.
+ */
+public class SessionWatchdog {
+	public static final String ACTION_WATCHDOG = "paliplatform.tools.ppmt.action.WATCHDOG";
+	public static final String STALL_FILE = "stalls.csv";
+	/** A boundary later than this is a stall. */
+	public static final int STALL_THRESHOLD_MILLIS = 2000;
+	/** The alarm is set this much past the threshold, so it is never early when on time. */
+	private static final int ALARM_MARGIN_MILLIS = 500;
+	private static final long MAX_STALL_BYTES = 32 * 1024;
+	private final AlarmManager alarmManager;
+	private final PendingIntent alarmIntent;
+	private final RecordFile stallFile;
+	private int stallCount;
+
+	public SessionWatchdog(final Context context, final Class<?> serviceClass) {
+		alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		final Intent intent = new Intent(context, serviceClass).setAction(ACTION_WATCHDOG);
+		alarmIntent = PendingIntent.getService(context, 1, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		stallFile = new RecordFile(new File(context.getFilesDir(), STALL_FILE),
+							"time,manufacturer,model,sdk,repeat,stall_millis,recovered", MAX_STALL_BYTES);
+	}
+
+	/** Sets the backstop alarm for the deadline, on the monotonic clock. */
+	public void arm(final long deadline) {
+		final long time = deadline + STALL_THRESHOLD_MILLIS + ALARM_MARGIN_MILLIS;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+			alarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, alarmIntent);
+		else
+			alarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, alarmIntent);
+	}
+
+	public void cancel() {
+		alarmManager.cancel(alarmIntent);
+	}
+
+	public static boolean isStall(final long lateMillis) {
+		return lateMillis > STALL_THRESHOLD_MILLIS;
+	}
+
+	/**
+	 * Returns whether the boundary is overdue when the alarm goes off. If not,
+	 * the alarm came early, and arm() sets it again for a time still ahead.
+	 */
+	public static boolean isDue(final long lateMillis) {
+		return lateMillis >= STALL_THRESHOLD_MILLIS;
+	}
+
+	/** Logs a stall of the boundary ending the repeat, and whether the watchdog recovered it. */
+	public void recordStall(final int repeat, final long stallMillis, final boolean recovered) {
+		stallCount++;
+		stallFile.append(System.currentTimeMillis() + "," + Build.MANUFACTURER + "," + Build.MODEL + ","
+							+ Build.VERSION.SDK_INT + "," + repeat + "," + stallMillis + "," + (recovered ? 1 : 0));
+	}
+
+	public int getStallCount() {
+		return stallCount;
+	}
+}
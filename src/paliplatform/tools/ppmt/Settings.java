@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.preference.PreferenceManager;
+
+/**
+ * The settings of the app, typed and parsed once. A change of the
+ * preferences drops the parsed values, and the next get parses them
+ * again from the preferences in memory. Writes are applied in memory at
+ * once and persisted in the background. The summaries shown in the
+ * settings are looked up in tables made once from the resources.
+ * The values are immutable, so they may be read on any thread.
+ */
+public class Settings {
+	public static final String INTERVAL = "pref_interval";
+	public static final String REPEAT = "pref_repeat";
+	public static final String SOUND = "pref_sound";
+	public static final String ENDING_BELL = "pref_ending_bell";
+	public static final String CLICK = "pref_click";
+	public static final String PREPARATION = "pref_preparation";
+	public static final String BACKEND = "pref_backend";
+	public static final String KEEP_SCREEN_ON = "pref_keepscreenon";
+	public static final String BELL_SIZE = "pref_bell_size";
+	private static SharedPreferences prefs;
+	private static HashMap<String, HashMap<String, String>> entryTables;
+	private static String[] intervalSumms;
+	private static String[] keepScreenOnSumms;
+	private static final List<SharedPreferences.OnSharedPreferenceChangeListener> listeners = new CopyOnWriteArrayList<>();
+	private static Settings current;
+	private final int interval;
+	private final int repeat;
+	private final String sound;
+	private final String endingBell;
+	private final int click;
+	private final String preparation;
+	private final int prepareMillis;
+	private final String backend;
+	private final boolean keepScreenOn;
+	private final int bellSize;
+	private final int sessionHash;
+
+	private Settings(final SharedPreferences sp) {
+		interval = parseInt(sp.getString(INTERVAL, "15"), 15);
+		repeat = parseInt(sp.getString(REPEAT, "2"), 2);
+		sound = sp.getString(SOUND, "tiny");
+		endingBell = sp.getString(ENDING_BELL, "small");
+		click = parseInt(sp.getString(CLICK, "1"), 1);
+		preparation = sp.getString(PREPARATION, "click");
+		prepareMillis = Timeline.getPrepareMillis(preparation);
+		backend = sp.getString(BACKEND, "stream");
+		keepScreenOn = sp.getBoolean(KEEP_SCREEN_ON, false);
+		bellSize = sp.getInt(BELL_SIZE, 0);
+		sessionHash = (interval + "|" + repeat + "|" + sound + "|" + endingBell + "|" + click + "|" + preparation).hashCode();
+	}
+
+	/** Returns the current settings, loading the preferences on the first call. */
+	public static synchronized Settings get(final Context context) {
+		if (prefs == null) {
+			final Context appContext = context.getApplicationContext();
+			prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+			// the settings file is parsed only when the defaults are not there,
+			// not on every start as the flag of setDefaultValues is another file
+			if (!prefs.contains(INTERVAL))
+				PreferenceManager.setDefaultValues(appContext, R.xml.settings, true);
+			prefs.registerOnSharedPreferenceChangeListener(invalidator);
+			buildTables(appContext.getResources());
+		}
+		if (current == null)
+			current = new Settings(prefs);
+		return current;
+	}
+
+	/** Adds a listener told of a change after the settings are dropped, so it gets the new ones. */
+	public static void addListener(final SharedPreferences.OnSharedPreferenceChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(final SharedPreferences.OnSharedPreferenceChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/** Stores the bell of the Live tab, persisted in the background. */
+	public static void putBellSize(final int id) {
+		prefs.edit().putInt(BELL_SIZE, id).apply();
+	}
+
+	/** Puts all settings back to the defaults, persisted in the background. */
+	public static synchronized void resetToDefaults(final Context context) {
+		prefs.edit().clear().apply();
+		PreferenceManager.setDefaultValues(context.getApplicationContext(), R.xml.settings, true);
+		// clearing tells no listener
+		current = null;
+	}
+
+	private static synchronized void invalidate() {
+		current = null;
+	}
+
+	private static SharedPreferences.OnSharedPreferenceChangeListener invalidator = new SharedPreferences.OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
+			invalidate();
+			for (final SharedPreferences.OnSharedPreferenceChangeListener listener : listeners)
+				listener.onSharedPreferenceChanged(sharedPreferences, key);
+		}
+	};
+
+	private static void buildTables(final Resources res) {
+		entryTables = new HashMap<>();
+		putTable(res, REPEAT, R.array.repeat_times_values, R.array.repeat_times_entries);
+		putTable(res, SOUND, R.array.sound_values, R.array.sound_entries);
+		putTable(res, ENDING_BELL, R.array.ending_bell_values, R.array.ending_bell_entries);
+		putTable(res, CLICK, R.array.click_values, R.array.click_entries);
+		putTable(res, PREPARATION, R.array.preparation_values, R.array.preparation_entries);
+		putTable(res, BACKEND, R.array.backend_values, R.array.backend_entries);
+		intervalSumms = new String[PlayerService.MAX_INTERVAL + 1];
+		for (int i = 1; i < intervalSumms.length; i++)
+			intervalSumms[i] = res.getQuantityString(R.plurals.interval_summ, i, i);
+		keepScreenOnSumms = new String[] {
+			res.getString(R.string.keepscreenon_summ_no),
+			res.getString(R.string.keepscreenon_summ_yes) };
+	}
+
+	private static void putTable(final Resources res, final String key, final int valuesId, final int entriesId) {
+		final String[] values = res.getStringArray(valuesId);
+		final String[] entries = res.getStringArray(entriesId);
+		final HashMap<String, String> table = new HashMap<>();
+		for (int i = 0; i < values.length && i < entries.length; i++)
+			table.put(values[i], entries[i]);
+		entryTables.put(key, table);
+	}
+
+	private static int parseInt(final String str, final int defValue) {
+		try {
+			return Integer.parseInt(str);
+		} catch (NumberFormatException e) {
+			return defValue;
+		}
+	}
+
+	/** Returns the summary of the setting shown in the settings, or null if it has none. */
+	public String getSummary(final String key) {
+		switch (key) {
+			case INTERVAL: return interval > 0 && interval < intervalSumms.length ? intervalSumms[interval] : String.valueOf(interval);
+			case REPEAT: return lookUp(key, String.valueOf(repeat), repeat + " times");
+			case SOUND: return lookUp(key, sound, sound);
+			case ENDING_BELL: return lookUp(key, endingBell, endingBell);
+			case CLICK: return lookUp(key, String.valueOf(click), String.valueOf(click));
+			case PREPARATION: return lookUp(key, preparation, preparation);
+			case BACKEND: return lookUp(key, backend, backend);
+			case KEEP_SCREEN_ON: return keepScreenOnSumms[keepScreenOn ? 1 : 0];
+			default: return null;
+		}
+	}
+
+	private static String lookUp(final String key, final String value, final String defSumm) {
+		final String entry = entryTables.get(key).get(value);
+		return entry == null ? defSumm : entry;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public int getRepeat() {
+		return repeat;
+	}
+
+	public String getSound() {
+		return sound;
+	}
+
+	public String getEndingBell() {
+		return endingBell;
+	}
+
+	public int getClick() {
+		return click;
+	}
+
+	public String getPreparation() {
+		return preparation;
+	}
+
+	public int getPrepareMillis() {
+		return prepareMillis;
+	}
+
+	public String getBackend() {
+		return backend;
+	}
+
+	public boolean isKeepScreenOn() {
+		return keepScreenOn;
+	}
+
+	/** Returns the id of the bell radio button of the Live tab, or 0 if none is stored. */
+	public int getBellSize() {
+		return bellSize;
+	}
+
+	/** Returns a hash of the settings that make up a session, to tell if a saved session is still the same. */
+	public int getSessionHash() {
+		return sessionHash;
+	}
+
+	/** Returns the total length of a session, in milliseconds. */
+	public long getTotalMillis() {
+		return prepareMillis + (long) interval * PlayerService.ONE_MINUTE_MILLIS * repeat;
+	}
+}
@@ -16,9 +16,6 @@
 
 package paliplatform.tools.ppmt;
 
-import java.util.Arrays;
-import java.util.List;
-
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
@@ -26,88 +23,58 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 
 public class SettingsFragment extends PreferenceFragment implements OnSharedPreferenceChangeListener {
+	private static final String[] SUMMARY_KEYS = {
+		Settings.INTERVAL, Settings.REPEAT, Settings.SOUND, Settings.ENDING_BELL,
+		Settings.CLICK, Settings.PREPARATION, Settings.BACKEND, Settings.KEEP_SCREEN_ON };
 
 	@Override
 	public void onCreate(final Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		addPreferencesFromResource(R.xml.settings);
+		findPreference(Settings.INTERVAL).setOnPreferenceChangeListener(intervalValidator);
 	}
+
+	private Preference.OnPreferenceChangeListener intervalValidator = new Preference.OnPreferenceChangeListener() {
+		@Override
+		public boolean onPreferenceChange(final Preference preference, final Object newValue) {
+			try {
+				final int intv = Integer.parseInt((String) newValue);
+				return intv >= 1 && intv <= PlayerService.MAX_INTERVAL;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+	};
 	
 	@Override
 	public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
-		updateSummary(sharedPreferences, key);
+		updateSummary(key);
 	}
 
-	private void updateSummary(final SharedPreferences sharedPreferences, final String key) {
+	private void updateSummary(final String key) {
 		final Preference pref = findPreference(key);
-		if ("pref_interval".equals(key)) {
-			pref.setSummary(sharedPreferences.getString(key, "") + " minutes");
-		} else if ("pref_repeat".equals(key)) {
-			final String[] repeatEntries = getResources().getStringArray(R.array.repeat_times_entries);
-			final String repeat = sharedPreferences.getString(key, "");
-			final String summRepeat;
-			if("1".equals(repeat))
-				summRepeat = repeatEntries[0];
-			else if("2".equals(repeat))
-				summRepeat = repeatEntries[1];
-			else
-				summRepeat = repeat + " times";
-			pref.setSummary(summRepeat);
-		} else if ("pref_sound".equals(key)) {
-			final String[] soundEntries = getResources().getStringArray(R.array.sound_entries);
-			final List<String> soundValues = Arrays.asList(getResources().getStringArray(R.array.sound_values));
-			final String sound = sharedPreferences.getString(key, "");
-			final int ind = soundValues.indexOf(sound);
-			pref.setSummary(soundEntries[ind]);
-		} else if ("pref_ending_bell".equals(key)) {
-			final String[] endingBellEntries = getResources().getStringArray(R.array.ending_bell_entries);
-			final List<String> endingBellValues = Arrays.asList(getResources().getStringArray(R.array.ending_bell_values));
-			final String ending_bell = sharedPreferences.getString(key, "");
-			final int ind = endingBellValues.indexOf(ending_bell);
-			pref.setSummary(endingBellEntries[ind]);
-		} else if ("pref_click".equals(key)) {
-			final String[] clickEntries = getResources().getStringArray(R.array.click_entries);
-			final List<String> clickValues = Arrays.asList(getResources().getStringArray(R.array.click_values));
-			final String click = sharedPreferences.getString(key, "");
-			final int ind = clickValues.indexOf(click);
-			pref.setSummary(clickEntries[ind]);
-		} else if ("pref_preparation".equals(key)) {
-			final String[] prepareEntries = getResources().getStringArray(R.array.preparation_entries);
-			final List<String> prepareValues = Arrays.asList(getResources().getStringArray(R.array.preparation_values));
-			final String prepare = sharedPreferences.getString(key, "");
-			final int ind = prepareValues.indexOf(prepare);
-			pref.setSummary(prepareEntries[ind]);
-		} else if ("pref_keepscreenon".equals(key)) {
-			final String summKeep = sharedPreferences.getBoolean(key, true)
-								? getResources().getString(R.string.keepscreenon_summ_yes)
-								: getResources().getString(R.string.keepscreenon_summ_no);
-			pref.setSummary(summKeep);
-		}
+		final String summ = Settings.get(getActivity()).getSummary(key);
+		if (pref != null && summ != null)
+			pref.setSummary(summ);
 	}
 
 	@Override
 	public void onStart() {
 		super.onStart();
 		// update preference summaries
-		final SharedPreferences prefs = ((MainActivity) getActivity()).getPrefs();
-		updateSummary(prefs, "pref_interval");
-		updateSummary(prefs, "pref_repeat");
-		updateSummary(prefs, "pref_sound");
-		updateSummary(prefs, "pref_ending_bell");
-		updateSummary(prefs, "pref_click");
-		updateSummary(prefs, "pref_preparation");
-		updateSummary(prefs, "pref_keepscreenon");
+		for (final String key : SUMMARY_KEYS)
+			updateSummary(key);
 	}
 
 	@Override
 	public void onResume() {
 		super.onResume();
-		getPreferenceScreen().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+		Settings.addListener(this);
 	}
 
 	@Override
 	public void onPause() {
 		super.onPause();
-		getPreferenceScreen().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+		Settings.removeListener(this);
 	}	
 }
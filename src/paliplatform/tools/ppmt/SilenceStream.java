@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.util.ArrayDeque;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Streams generated silence segments through one AudioTrack.
+ * A segment is a run of zero samples followed by an optional tail sound,
+ * e.g., the leading click. Segments are written back to back, and zeros
+ * are written while nothing is queued, so the output is never idle.
+ * Nothing is decoded while streaming.
+ */
+public class SilenceStream {
+	private final int sampleRate;
+	private final int bufferFrames;
+	private final short[] zeros;
+	private final AudioTrack track;
+	private final Handler handler;
+	private final ArrayDeque<Segment> segmentQueue;
+	private final Listener listener;
+	private volatile boolean running;
+	private Thread writer;
+	private volatile int generation;
+	private long framesWritten;
+
+	public interface Listener {
+		/** Called on the looper of the stream when a segment has been played through. */
+		void onSegmentEnd();
+	}
+
+	public SilenceStream(final int sampleRate, final Looper looper, final Listener listener) {
+		this.sampleRate = sampleRate;
+		this.listener = listener;
+		// a quarter of a second per write keeps wake-ups rare
+		bufferFrames = sampleRate / 4;
+		zeros = new short[bufferFrames];
+		final int minBuffer = AudioTrack.getMinBufferSize(sampleRate,
+							AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+		track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+							AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+							Math.max(minBuffer, bufferFrames * 4), AudioTrack.MODE_STREAM);
+		handler = new Handler(looper);
+		track.setPlaybackPositionUpdateListener(markerListener, handler);
+		segmentQueue = new ArrayDeque<>();
+		running = false;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Starts a new writer. A writer left from the last stop() exits on its
+	 * own, and the new one waits for it, so they never write together.
+	 */
+	public void start() {
+		if (running) return;
+		running = true;
+		track.play();
+		writer = new Thread(null, new Writer(++generation, writer), "silence-writer");
+		writer.start();
+	}
+
+	public void pause() {
+		try {
+			track.pause();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	public void resume() {
+		try {
+			track.play();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	public void stop() {
+		running = false;
+		synchronized (this) {
+			segmentQueue.clear();
+		}
+		try {
+			track.pause();
+			track.flush();
+		} catch (IllegalStateException e) {
+		}
+		if (writer != null) {
+			try {
+				writer.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	public void release() {
+		stop();
+		track.release();
+	}
+
+	/** Queues a segment of silence ending with the tail, lasting totalMillis in all. */
+	public synchronized void queue(final long totalMillis, final short[] tail) {
+		final long frames = totalMillis * sampleRate / 1000;
+		segmentQueue.add(new Segment(Math.max(frames, tail == null ? 0 : tail.length), tail));
+	}
+
+	/** Queues a segment that consists of the sound only. */
+	public synchronized void queue(final short[] sound) {
+		segmentQueue.add(new Segment(sound.length, sound));
+	}
+
+	/** Returns the position in the segment now playing, or 0. */
+	public synchronized int getPositionMillis() {
+		final Segment seg = segmentQueue.peek();
+		if (seg == null || seg.startFrame < 0) return 0;
+		final long pos = (track.getPlaybackHeadPosition() & 0xffffffffL) - seg.startFrame;
+		return pos < 0 ? 0 : (int) (pos * 1000 / sampleRate);
+	}
+
+	/** Returns the length of the segment now playing, or -1. */
+	public synchronized int getDurationMillis() {
+		final Segment seg = segmentQueue.peek();
+		return seg == null ? -1 : (int) (seg.totalFrames * 1000 / sampleRate);
+	}
+
+	private synchronized Segment nextToWrite() {
+		for (final Segment seg : segmentQueue) {
+			if (seg.written < seg.totalFrames) {
+				if (seg.startFrame < 0) {
+					seg.startFrame = framesWritten;
+					if (seg == segmentQueue.peek())
+						track.setNotificationMarkerPosition((int) (seg.startFrame + seg.totalFrames));
+				}
+				return seg;
+			}
+		}
+		return null;
+	}
+
+	private AudioTrack.OnPlaybackPositionUpdateListener markerListener = new AudioTrack.OnPlaybackPositionUpdateListener() {
+		@Override
+		public void onMarkerReached(final AudioTrack t) {
+			synchronized (SilenceStream.this) {
+				segmentQueue.poll();
+				final Segment next = segmentQueue.peek();
+				if (next != null && next.startFrame >= 0)
+					track.setNotificationMarkerPosition((int) (next.startFrame + next.totalFrames));
+			}
+			if (running)
+				listener.onSegmentEnd();
+		}
+		@Override
+		public void onPeriodicNotification(final AudioTrack t) {
+		}
+	};
+
+	// inner classes
+	/** Writes the queued segments until stopped, or until a newer writer is started. */
+	private class Writer implements Runnable {
+		private final int gen;
+		private final Thread previous;
+		public Writer(final int gen, final Thread previous) {
+			this.gen = gen;
+			this.previous = previous;
+		}
+		@Override
+		public void run() {
+			if (previous != null) {
+				try {
+					previous.join();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			synchronized (SilenceStream.this) {
+				framesWritten = 0;
+			}
+			while (running && gen == generation) {
+				final Segment seg = nextToWrite();
+				final int count;
+				if (seg == null) {
+					// nothing queued, keep the output path warm
+					count = track.write(zeros, 0, bufferFrames);
+				} else {
+					final long remaining = seg.totalFrames - seg.written;
+					final int tailLength = seg.tail == null ? 0 : seg.tail.length;
+					final long silent = remaining - tailLength;
+					if (silent > 0) {
+						count = track.write(zeros, 0, (int) Math.min(silent, bufferFrames));
+					} else {
+						final int offset = (int) (tailLength - remaining);
+						count = track.write(seg.tail, offset, (int) Math.min(remaining, bufferFrames));
+					}
+					if (count > 0) {
+						synchronized (SilenceStream.this) {
+							seg.written += count;
+						}
+					}
+				}
+				if (count < 0) break;
+				synchronized (SilenceStream.this) {
+					framesWritten += count;
+				}
+			}
+		}
+	}
+
+	private static class Segment {
+		private final long totalFrames;
+		private final short[] tail;
+		private long startFrame;
+		private long written;
+		public Segment(final long frames, final short[] tailSound) {
+			totalFrames = frames;
+			tail = tailSound;
+			startFrame = -1;
+			written = 0;
+		}
+	}
+}
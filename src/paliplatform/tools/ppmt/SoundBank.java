@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+/**
+ * Decodes raw sound resources into 16-bit mono PCM and keeps them in memory,
+ * so each resource is decoded only once.
+ */
+public class SoundBank {
+	private static final long CODEC_TIMEOUT_US = 10000;
+	private final Context context;
+	private final HashMap<Integer, Sound> soundMap;
+	private long decodedBytes;
+
+	public SoundBank(final Context context) {
+		this.context = context;
+		soundMap = new HashMap<>();
+		decodedBytes = 0;
+	}
+
+	/** Returns the decoded sound, decoding it first if needed. */
+	public synchronized Sound get(final int resId) throws IOException {
+		Sound sound = soundMap.get(resId);
+		if (sound == null) {
+			sound = decode(resId);
+			soundMap.put(resId, sound);
+		}
+		return sound;
+	}
+
+	/** Returns the number of compressed bytes read by the decoder so far. */
+	public synchronized long getDecodedBytes() {
+		return decodedBytes;
+	}
+
+	/** Decodes a sound file, e.g., a synthesized phrase. It is not kept in the bank. */
+	public Sound decodeFile(final File file) throws IOException {
+		final MediaExtractor extractor = new MediaExtractor();
+		try {
+			extractor.setDataSource(file.getPath());
+		} catch (IOException e) {
+			extractor.release();
+			throw e;
+		}
+		return decode(extractor);
+	}
+
+	private Sound decode(final int resId) throws IOException {
+		final AssetFileDescriptor afd = context.getResources().openRawResourceFd(resId);
+		final MediaExtractor extractor = new MediaExtractor();
+		try {
+			extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+		} catch (IOException e) {
+			extractor.release();
+			throw e;
+		} finally {
+			afd.close();
+		}
+		return decode(extractor);
+	}
+
+	/** Decodes the first track of the extractor into mono PCM, and releases the extractor. */
+	private Sound decode(final MediaExtractor extractor) throws IOException {
+		MediaCodec codec = null;
+		try {
+			final MediaFormat format = extractor.getTrackFormat(0);
+			int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+			int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+			extractor.selectTrack(0);
+			codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+			codec.configure(format, null, null, 0);
+			codec.start();
+			final ByteBuffer[] inBuffers = codec.getInputBuffers();
+			ByteBuffer[] outBuffers = codec.getOutputBuffers();
+			final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			short[] pcm = new short[sampleRate];
+			int frames = 0;
+			boolean inputDone = false;
+			boolean outputDone = false;
+			while (!outputDone) {
+				if (!inputDone) {
+					final int inIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+					if (inIndex >= 0) {
+						final int size = extractor.readSampleData(inBuffers[inIndex], 0);
+						if (size < 0) {
+							codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+							inputDone = true;
+						} else {
+							codec.queueInputBuffer(inIndex, 0, size, extractor.getSampleTime(), 0);
+							synchronized (this) {
+								decodedBytes += size;
+							}
+							extractor.advance();
+						}
+					}
+				}
+				final int outIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+				if (outIndex >= 0) {
+					final ByteBuffer buf = outBuffers[outIndex];
+					buf.position(info.offset);
+					buf.limit(info.offset + info.size);
+					final ShortBuffer samples = buf.order(ByteOrder.nativeOrder()).asShortBuffer();
+					final int newFrames = samples.remaining() / channels;
+					if (frames + newFrames > pcm.length)
+						pcm = Arrays.copyOf(pcm, Math.max(pcm.length * 2, frames + newFrames));
+					for (int i = 0; i < newFrames; i++) {
+						// downmix to mono
+						int sum = 0;
+						for (int c = 0; c < channels; c++)
+							sum += samples.get();
+						pcm[frames++] = (short) (sum / channels);
+					}
+					codec.releaseOutputBuffer(outIndex, false);
+					if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+						outputDone = true;
+				} else if (outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					outBuffers = codec.getOutputBuffers();
+				} else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					final MediaFormat outFormat = codec.getOutputFormat();
+					sampleRate = outFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+					channels = outFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+				}
+			}
+			return new Sound(Arrays.copyOf(pcm, frames), sampleRate);
+		} finally {
+			if (codec != null) {
+				try {
+					codec.stop();
+				} catch (IllegalStateException e) {
+				}
+				codec.release();
+			}
+			extractor.release();
+		}
+	}
+
+	// inner classes
+	public static class Sound {
+		private final short[] pcm;
+		private final int sampleRate;
+		public Sound(final short[] data, final int rate) {
+			pcm = data;
+			sampleRate = rate;
+		}
+		public short[] getPcm() {
+			return pcm;
+		}
+		public int getSampleRate() {
+			return sampleRate;
+		}
+		public int getFrameCount() {
+			return pcm.length;
+		}
+		public int getDurationMillis() {
+			return (int) (pcm.length * 1000L / sampleRate);
+		}
+	}
+}
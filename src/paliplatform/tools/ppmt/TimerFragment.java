@@ -18,18 +18,15 @@ package paliplatform.tools.ppmt;
 
 import android.app.Fragment;
 import android.os.Bundle;
-import android.os.CountDownTimer;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.LayoutInflater;
-import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.widget.Button;
 import android.widget.ImageButton;
-import android.widget.TextView;
-import android.widget.ProgressBar;
 import android.graphics.drawable.Drawable;
-import android.graphics.Rect;
-import android.preference.PreferenceManager;
 
 // for debug
 //~ import android.widget.Toast;
@@ -37,20 +34,18 @@ import android.preference.PreferenceManager;
 
 public class TimerFragment extends Fragment {
 	enum State { READY, COUNTDOWN, PAUSED }
-	private static final int GUI_UPDATE_INTERVAL = 500;
+	private static final int ONE_SECOND_MILLIS = 1000;
 	private MainActivity mainAct;
-	private SharedPreferences prefs;
+	private Settings settings;
 	private PlayerService playerService;
-	private CountDownTimer refreshTimer;
-	private TextView timerDisplay;
-	private TextView repeatDisplay;
-	private TextView elapseDisplay;
-	private TextView totalDisplay;
-	private ProgressBar timerProgress;
-	private int interval;
-	private int repeat;
-	private String preparation;
-	private int preMillis;
+	private final Handler refreshHandler = new Handler();
+	private boolean isFollowing;
+	private boolean wasPaused;
+	private TimerView timerView;
+	private Drawable playIcon;
+	private Drawable pauseIcon;
+	private int[] buttonColors;
+	private State shownButtonState;
 	private State currState = State.READY;
 	private long totalMillis = 0;
 	private long remMillis;
@@ -67,26 +62,23 @@ public class TimerFragment extends Fragment {
 	public void onResume() {
 		super.onResume();
 		isShowing = true;
-		timerDisplay = (TextView) mainAct.findViewById(R.id.timer_display);
-		repeatDisplay = (TextView) mainAct.findViewById(R.id.repeat_display);
-		elapseDisplay = (TextView) mainAct.findViewById(R.id.elapse_display);
-		totalDisplay = (TextView) mainAct.findViewById(R.id.total_display);
-		timerProgress = (ProgressBar) mainAct.findViewById(R.id.timer_progress);
-		prefs = mainAct.getPrefs();
-		interval = Integer.parseInt(prefs.getString("pref_interval", "15"));
-		repeat = Integer.parseInt(prefs.getString("pref_repeat", "2"));
-		preparation = prefs.getString("pref_preparation", "click");
-		preMillis = preparation.equals("no") ? 3000 : preparation.equals("gong") ? 20000 : 10000;
+		timerView = (TimerView) mainAct.findViewById(R.id.timer_view);
+		shownButtonState = null;
+		settings = Settings.get(mainAct);
 		if (playerService == null || !playerService.isRunning() || totalMillis == 0)
 			initMillis();
 		setupResetButton();
 		updateStartButton();
 		updateTimerDisplay();
+		if (isFollowing)
+			refreshHandler.post(doRefreshing);
 	}
 
 	@Override
 	public void onPause() {
 		isShowing = false;
+		// nothing is refreshed while hidden, or while the screen is off
+		refreshHandler.removeCallbacks(doRefreshing);
 		super.onPause();
 	}
 
@@ -99,7 +91,7 @@ public class TimerFragment extends Fragment {
 	}
 
 	public void initMillis() {
-		totalMillis = preMillis + interval * PlayerService.ONE_MINUTE_MILLIS * repeat;
+		totalMillis = settings.getTotalMillis();
 		remMillis = totalMillis;
 	}
 
@@ -108,55 +100,84 @@ public class TimerFragment extends Fragment {
 		resumeRefreshTimer();
 	}
 
+	/**
+	 * Follows the running session. The display is refreshed on each
+	 * whole second while shown, and the service tells the boundaries.
+	 */
 	public void resumeRefreshTimer() {
 		playerService = mainAct.getPlayerService();
-		refreshTimer = new CountDownTimer(remMillis, GUI_UPDATE_INTERVAL) {
-			@Override
-			public void onTick(final long millisUntilFinished) {
-				if (playerService.isRunning()) {
-					remMillis = millisUntilFinished;
-					updateTimerDisplay();
-				} else {
-					onFinish();
-				}
-			}
-			@Override
-			public void onFinish() {
-				refreshTimer.cancel();
-				refreshTimer = null;
-				currState = State.READY;
-				remMillis = totalMillis;
-				updateTimerDisplay(true);
-				updateStartButton();
-				mainAct.setSettingsEnabled(true);
-				if (prefs.getBoolean("pref_keepscreenon", false))
-					mainAct.keepAwake(false);
-			}
-		};
-		refreshTimer.start();
+		if (playerService == null) return;
+		isFollowing = true;
+		wasPaused = playerService.getSnapshot().isPaused();
+		playerService.addSessionListener(sessionListener);
+		refreshHandler.removeCallbacks(doRefreshing);
+		if (isShowing)
+			refreshHandler.post(doRefreshing);
 	}
 
 	public void stopRefreshTimer() {
-		if (refreshTimer != null)
-			refreshTimer.cancel();
+		isFollowing = false;
+		refreshHandler.removeCallbacks(doRefreshing);
+		if (playerService != null)
+			playerService.removeSessionListener(sessionListener);
 	}
 
-	private String formatMillis(final long millis, boolean withHour) {
-		final long sec = millis / 1000;
-		final long secPart = sec % 60;
-		final long hourPart;
-		final long minPart;
-		final String result;
-		if (withHour) {
-			hourPart = sec / 3600;
-			minPart = (sec % 3600) / 60;
-			result = String.format("%02d:%02d:%02d", hourPart, minPart, secPart);
-		} else {
-			hourPart = 0;
-			minPart = sec / 60;
-			result = String.format("%02d:%02d", minPart, secPart);
+	private PlayerService.SessionListener sessionListener = new PlayerService.SessionListener() {
+		@Override
+		public void onSessionChanged(final SessionSnapshot snapshot) {
+			if (!isFollowing) return;
+			if (!snapshot.isRunning()) {
+				finishSession();
+				return;
+			}
+			// the session may be paused or resumed from the notification
+			if (snapshot.isPaused() != wasPaused) {
+				wasPaused = snapshot.isPaused();
+				currState = wasPaused ? State.PAUSED : State.COUNTDOWN;
+				updateStartButton();
+			}
+			if (isShowing) {
+				refreshHandler.removeCallbacks(doRefreshing);
+				refreshHandler.post(doRefreshing);
+			}
+		}
+	};
+
+	private Runnable doRefreshing = new Runnable() {
+		@Override
+		public void run() {
+			if (!isFollowing || playerService == null) return;
+			final SessionSnapshot snapshot = playerService.getSnapshot();
+			if (!snapshot.isRunning()) {
+				finishSession();
+				return;
+			}
+			// follow the session clock of the service, not a timer's own
+			final long sessionRemain = snapshot.getSessionRemainingMillis(SystemClock.elapsedRealtime());
+			if (sessionRemain < 0) return;
+			remMillis = sessionRemain;
+			updateTimerDisplay();
+			playerService.countUiRefresh();
+			if (!isShowing || snapshot.isPaused() || mainAct.isScreenDark()) return;
+			// wake up right after the display turns to the next second
+			final long delay = sessionRemain % ONE_SECOND_MILLIS;
+			refreshHandler.postDelayed(this, (delay == 0 ? ONE_SECOND_MILLIS : delay) + 1);
 		}
-		return result;
+	};
+
+	/** Called when the session is over, also when stopped from the notification. */
+	private void finishSession() {
+		stopRefreshTimer();
+		// the next Start binds again
+		mainAct.releasePlayerService();
+		playerService = null;
+		currState = State.READY;
+		remMillis = totalMillis;
+		updateTimerDisplay(true);
+		updateStartButton();
+		mainAct.setSettingsEnabled(true);
+		if (settings.isKeepScreenOn())
+			mainAct.keepAwake(false);
 	}
 
 	public void updateTimerDisplay() {
@@ -165,52 +186,27 @@ public class TimerFragment extends Fragment {
 
 	public void updateTimerDisplay(final boolean isInit) {
 		if (!isShowing) return;
-		if (timerDisplay == null) return;
-		if (playerService == null || !playerService.isRunning() || isInit) {
+		if (timerView == null) return;
+		final SessionSnapshot snapshot = playerService == null ? SessionSnapshot.IDLE : playerService.getSnapshot();
+		final long now = SystemClock.elapsedRealtime();
+		if (!snapshot.isRunning() || isInit) {
 			if (currState == State.READY) {
-				lastMillis =  preMillis;
+				lastMillis = settings.getPrepareMillis();
 			}
 		} else {
-			if (playerService.getCurrPlayState() == PlayerService.PlayState.BELL) {
-				if (playerService.getCurrRepeat() == 0)
-					lastMillis = preMillis;
+			if (snapshot.isBell()) {
+				if (snapshot.getRepeat(now) == 0)
+					lastMillis = settings.getPrepareMillis();
 				else
-					lastMillis = interval * PlayerService.ONE_MINUTE_MILLIS;
+					lastMillis = settings.getInterval() * PlayerService.ONE_MINUTE_MILLIS;
 			} else {
-				int duration = playerService.getDuration();
-				int position = playerService.getCurrPosition();
-				if (duration > 0 && position >= 0 && duration - position >= 0)
-					lastMillis = duration - position;
+				final long segRemain = snapshot.getSegmentRemainingMillis(now);
+				if (segRemain >= 0)
+					lastMillis = (int) segRemain;
 			}
 		}
-		timerDisplay.setText(formatMillis(lastMillis, false));
-		updateRepeatDisplay();
-		updateProgressBar();
-		updateElapsingTime();
-	}
-
-	private void updateRepeatDisplay() {
-		if (repeatDisplay == null) return;
-		final int curr;
-		if (playerService == null || !playerService.isRunning()) {
-			curr = 0;
-		} else {
-			curr = playerService.getCurrRepeat();
-		}
-		repeatDisplay.setText(curr + "/" + repeat);
-	}
-
-	private void updateProgressBar() {
-		final long progress = totalMillis - remMillis;
-		timerProgress.setMax((int)totalMillis);
-		timerProgress.setProgress((int)progress);
-	}
-
-	private void updateElapsingTime() {
-		if (elapseDisplay == null || totalDisplay == null) return;
-		final long elapsed = totalMillis - remMillis;
-		elapseDisplay.setText(formatMillis(elapsed, true));
-		totalDisplay.setText(formatMillis(totalMillis, true));
+		final int curr = snapshot.isRunning() ? snapshot.getRepeat(now) : 0;
+		timerView.setTimes(lastMillis, totalMillis - remMillis, totalMillis, curr, settings.getRepeat());
 	}
 
 	public void updateStartButton() {
@@ -218,28 +214,40 @@ public class TimerFragment extends Fragment {
 	}
 
 	public void updateStartButton(final State state) {
-		if (!isShowing) return;
+		if (!isShowing || state == shownButtonState) return;
 		final Button butStart = (Button) mainAct.findViewById(R.id.button_start);
+		final Resources res = mainAct.getResources();
+		if (playIcon == null) {
+			// the icons are loaded once, and only the changes are applied
+			playIcon = res.getDrawable(android.R.drawable.ic_media_play, null);
+			playIcon.setBounds(0, 0, playIcon.getIntrinsicWidth(), playIcon.getIntrinsicHeight());
+			pauseIcon = res.getDrawable(android.R.drawable.ic_media_pause, null);
+			pauseIcon.setBounds(0, 0, pauseIcon.getIntrinsicWidth(), pauseIcon.getIntrinsicHeight());
+			buttonColors = new int[] {
+				res.getColor(android.R.color.holo_orange_light, null),
+				res.getColor(android.R.color.holo_green_light, null),
+				res.getColor(android.R.color.primary_text_dark, null) };
+		}
 		final Drawable icon;
-		final String text;
+		final int text;
 		final int color;
 		if (state == State.COUNTDOWN) {
-			icon = mainAct.getResources().getDrawable(android.R.drawable.ic_media_pause, null);
-			text = mainAct.getResources().getString(R.string.pause);
-			color = mainAct.getResources().getColor(android.R.color.holo_orange_light, null);
+			icon = pauseIcon;
+			text = R.string.pause;
+			color = buttonColors[0];
 		} else if (state == State.PAUSED) {
-			icon = mainAct.getResources().getDrawable(android.R.drawable.ic_media_play, null);
-			text = mainAct.getResources().getString(R.string.resume);
-			color = mainAct.getResources().getColor(android.R.color.holo_green_light, null);
+			icon = playIcon;
+			text = R.string.resume;
+			color = buttonColors[1];
 		} else {
-			icon = mainAct.getResources().getDrawable(android.R.drawable.ic_media_play, null);
-			text = mainAct.getResources().getString(R.string.start);
-			color = mainAct.getResources().getColor(android.R.color.primary_text_dark, null);
+			icon = playIcon;
+			text = R.string.start;
+			color = buttonColors[2];
 		}
-		icon.setBounds(new Rect(0, 0, icon.getIntrinsicWidth(), icon.getIntrinsicHeight()));
 		butStart.setCompoundDrawables(icon, null, null, null);
 		butStart.setText(text);
 		butStart.setTextColor(color);
+		shownButtonState = state;
 	}
 
 	private void setupResetButton() {
@@ -251,8 +259,7 @@ public class TimerFragment extends Fragment {
 		});
 		butReset.setOnLongClickListener(new View.OnLongClickListener() {
 			public boolean onLongClick(final View v) {
-				prefs.edit().clear().commit();
-				PreferenceManager.setDefaultValues(mainAct.getApplicationContext(), R.xml.settings, false);
+				Settings.resetToDefaults(mainAct);
 				mainAct.resetTimer();
 				onResume();
 				return true;
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Shows the countdown of the segment, the repeat, the elapsed and total
+ * time, and the progress of the session as a ring around them. The digits
+ * are formatted into buffers kept by the view, and the view is redrawn
+ * only when a digit or a pixel of the ring changes, so a refresh of the
+ * display allocates nothing.
+ */
+public class TimerView extends View {
+	private static final int DEFAULT_SIZE_DP = 260;
+	private static final float RING_WIDTH_DP = 6;
+	private static final float BIG_TEXT_SP = 40;
+	private static final float SMALL_TEXT_SP = 16;
+	private final char[] countdownChars = new char[TimeFormat.MAX_LENGTH];
+	private final char[] repeatChars = new char[TimeFormat.MAX_LENGTH];
+	private final char[] elapsedChars = new char[TimeFormat.MAX_LENGTH];
+	private final char[] totalChars = new char[TimeFormat.MAX_LENGTH];
+	private final Paint bigPaint;
+	private final Paint smallPaint;
+	private final Paint dimPaint;
+	private final Paint trackPaint;
+	private final Paint ringPaint;
+	private final RectF ringBounds;
+	private final float density;
+	private final float scaledDensity;
+	private int countdownLength;
+	private int repeatLength;
+	private int elapsedLength;
+	private int totalLength;
+	private long shownCountdownSec = -1;
+	private long shownElapsedSec = -1;
+	private long shownTotalSec = -1;
+	private int shownRepeat = -1;
+	private int shownRepeats = -1;
+	private long elapsedMillis;
+	private long totalMillis;
+	private int ringSteps = 360;
+	private int ringStep = -1;
+
+	public TimerView(final Context context) {
+		this(context, null);
+	}
+
+	public TimerView(final Context context, final AttributeSet attrs) {
+		super(context, attrs);
+		density = getResources().getDisplayMetrics().density;
+		scaledDensity = getResources().getDisplayMetrics().scaledDensity;
+		final int textColor = getResources().getColor(android.R.color.primary_text_dark);
+		bigPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		bigPaint.setColor(textColor);
+		bigPaint.setTextSize(BIG_TEXT_SP * scaledDensity);
+		bigPaint.setTextAlign(Paint.Align.CENTER);
+		bigPaint.setTypeface(Typeface.create(Typeface.MONOSPACE, Typeface.BOLD));
+		smallPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		smallPaint.setColor(textColor);
+		smallPaint.setTextSize(SMALL_TEXT_SP * scaledDensity);
+		smallPaint.setTextAlign(Paint.Align.CENTER);
+		smallPaint.setTypeface(Typeface.MONOSPACE);
+		dimPaint = new Paint(smallPaint);
+		dimPaint.setColor(getResources().getColor(android.R.color.secondary_text_dark));
+		trackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		trackPaint.setStyle(Paint.Style.STROKE);
+		trackPaint.setStrokeWidth(RING_WIDTH_DP * density);
+		trackPaint.setColor(getResources().getColor(android.R.color.darker_gray));
+		ringPaint = new Paint(trackPaint);
+		ringPaint.setStrokeCap(Paint.Cap.ROUND);
+		ringPaint.setColor(getResources().getColor(android.R.color.holo_blue_light));
+		ringBounds = new RectF();
+	}
+
+	/**
+	 * Sets the times to show, in milliseconds, and the repeat. The view is
+	 * redrawn only if something visible has changed.
+	 */
+	public void setTimes(final long countdown, final long elapsed, final long total,
+						final int repeat, final int repeats) {
+		boolean changed = false;
+		if (countdown / 1000 != shownCountdownSec) {
+			shownCountdownSec = countdown / 1000;
+			countdownLength = TimeFormat.formatMillis(countdown, false, countdownChars);
+			changed = true;
+		}
+		if (elapsed / 1000 != shownElapsedSec) {
+			shownElapsedSec = elapsed / 1000;
+			elapsedLength = TimeFormat.formatMillis(elapsed, true, elapsedChars);
+			changed = true;
+		}
+		if (total / 1000 != shownTotalSec) {
+			shownTotalSec = total / 1000;
+			totalLength = TimeFormat.formatMillis(total, true, totalChars);
+			changed = true;
+		}
+		if (repeat != shownRepeat || repeats != shownRepeats) {
+			shownRepeat = repeat;
+			shownRepeats = repeats;
+			final int pos = TimeFormat.putNumber(repeatChars, 0, repeat, 1);
+			repeatChars[pos] = '/';
+			repeatLength = TimeFormat.putNumber(repeatChars, pos + 1, repeats, 1);
+			changed = true;
+		}
+		elapsedMillis = elapsed;
+		totalMillis = total;
+		if (updateRingStep())
+			changed = true;
+		if (changed)
+			invalidate();
+	}
+
+	/** Works out the length of the ring in steps of about a pixel, and returns whether it has changed. */
+	private boolean updateRingStep() {
+		final int step = totalMillis <= 0 ? 0
+						: (int) (Math.max(0, Math.min(elapsedMillis, totalMillis)) * ringSteps / totalMillis);
+		if (step == ringStep) return false;
+		ringStep = step;
+		return true;
+	}
+
+	@Override
+	protected void onMeasure(final int widthMeasureSpec, final int heightMeasureSpec) {
+		final int def = (int) (DEFAULT_SIZE_DP * density);
+		final int size = Math.min(resolveSize(def, widthMeasureSpec), resolveSize(def, heightMeasureSpec));
+		setMeasuredDimension(size, size);
+	}
+
+	@Override
+	protected void onSizeChanged(final int w, final int h, final int oldw, final int oldh) {
+		final float inset = trackPaint.getStrokeWidth();
+		final float radius = Math.min(w, h) / 2f - inset;
+		ringBounds.set(w / 2f - radius, h / 2f - radius, w / 2f + radius, h / 2f + radius);
+		ringSteps = Math.max(1, (int) (2 * Math.PI * radius));
+		updateRingStep();
+	}
+
+	@Override
+	protected void onDraw(final Canvas canvas) {
+		canvas.drawArc(ringBounds, 0, 360, false, trackPaint);
+		if (ringStep > 0)
+			canvas.drawArc(ringBounds, -90, 360f * ringStep / ringSteps, false, ringPaint);
+		final float cx = getWidth() / 2f;
+		final float cy = getHeight() / 2f;
+		final float big = bigPaint.getTextSize();
+		final float small = smallPaint.getTextSize();
+		canvas.drawText(repeatChars, 0, repeatLength, cx, cy - big * 0.9f, smallPaint);
+		canvas.drawText(countdownChars, 0, countdownLength, cx, cy + big * 0.35f, bigPaint);
+		canvas.drawText(elapsedChars, 0, elapsedLength, cx, cy + big * 0.35f + small * 1.8f, smallPaint);
+		canvas.drawText(totalChars, 0, totalLength, cx, cy + big * 0.35f + small * 3f, dimPaint);
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2023 J.R. Bhaddacak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package paliplatform.tools.ppmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+/**
+ * Renders whole sessions into single AAC tracks and keeps them in an
+ * LRU cache in the app storage. Tracks are keyed by a hash of the settings,
+ * and the least recently used ones are deleted when the cache is too big.
+ */
+public class TrackCache {
+	public static final long MAX_CACHE_BYTES = 200L * 1024 * 1024;
+	private static final String MIME_AAC = "audio/mp4a-latm";
+	private static final int BIT_RATE = 32000;
+	private static final int AAC_LC = 2;
+	private static final int CHUNK_FRAMES = 4096;
+	private static final long CODEC_TIMEOUT_US = 10000;
+	private static final int RENDER_VERSION = 1;
+	/** Allows for the bell tail and the container, beyond the nominal bit rate. */
+	private static final long SIZE_MARGIN_BYTES = 1024 * 1024;
+	private final File cacheDir;
+	private final SoundBank soundBank;
+	private Request pendingRequest;
+	private boolean rendering;
+
+	public TrackCache(final Context context, final SoundBank soundBank) {
+		cacheDir = new File(context.getCacheDir(), "tracks");
+		cacheDir.mkdirs();
+		this.soundBank = soundBank;
+	}
+
+	/** Makes the cache key of a session from its settings. */
+	public static String keyOf(final int interval, final int repeat, final String sound, final String endingBell,
+							final int clickOption, final String preparation) {
+		final String spec = RENDER_VERSION + "|" + interval + "|" + repeat + "|" + sound + "|"
+							+ endingBell + "|" + clickOption + "|" + preparation;
+		return hash(spec);
+	}
+
+	/** Returns the SHA-1 of the text in hex, to be used as a file name. */
+	static String hash(final String spec) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(spec.getBytes("UTF-8"));
+			final StringBuilder hex = new StringBuilder();
+			for (final byte b : digest)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+			return Integer.toHexString(spec.hashCode());
+		}
+	}
+
+	/** Returns the rendered track of the key, or null if it is not ready. */
+	public synchronized File get(final String key) {
+		final File file = new File(cacheDir, key + ".m4a");
+		if (!file.isFile()) return null;
+		// mark it as the most recently used
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/** Estimates the size of the rendered track of the timeline, in bytes. */
+	static long estimateBytes(final Timeline timeline) {
+		return timeline.getTotalMillis() * BIT_RATE / 8000 + SIZE_MARGIN_BYTES;
+	}
+
+	/**
+	 * Asks for the session to be rendered in the background, if it is not
+	 * in the cache yet. A newer request replaces a waiting one. A session too
+	 * long to fit in the cache is not rendered, and is streamed instead.
+	 */
+	public synchronized void requestRender(final String key, final Timeline timeline, final String preparation) {
+		if (new File(cacheDir, key + ".m4a").isFile()) return;
+		if (estimateBytes(timeline) > MAX_CACHE_BYTES) return;
+		pendingRequest = new Request(key, timeline, preparation);
+		if (!rendering) {
+			rendering = true;
+			final Thread thread = new Thread(null, doRendering, "track-renderer");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+	}
+
+	private synchronized Request takeRequest() {
+		final Request req = pendingRequest;
+		pendingRequest = null;
+		if (req == null)
+			rendering = false;
+		return req;
+	}
+
+	private Runnable doRendering = new Runnable() {
+		@Override
+		public void run() {
+			Request req;
+			while ((req = takeRequest()) != null) {
+				final File tmpFile = new File(cacheDir, req.key + ".tmp");
+				try {
+					render(req, tmpFile);
+					synchronized (TrackCache.this) {
+						final File file = new File(cacheDir, req.key + ".m4a");
+						tmpFile.renameTo(file);
+						trim(file);
+					}
+				} catch (IOException | RuntimeException e) {
+					tmpFile.delete();
+				}
+			}
+		}
+	};
+
+	/** Deletes the least recently used tracks over the cap, but never the one kept. */
+	private void trim(final File keep) {
+		final File[] files = cacheDir.listFiles();
+		if (files == null) return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		long total = 0;
+		for (final File f : files) {
+			if (f.equals(keep) || f.getName().endsWith(".tmp")) continue;
+			total += f.length();
+			if (total > MAX_CACHE_BYTES - keep.length())
+				f.delete();
+		}
+	}
+
+	private void render(final Request req, final File outFile) throws IOException {
+		final SoundBank.Sound click = soundBank.get(R.raw.click);
+		final short[][] bells = new short[4][];
+		bells[Timeline.BELL_TINY] = soundBank.get(R.raw.bell_tiny).getPcm();
+		bells[Timeline.BELL_SMALL] = soundBank.get(R.raw.bell_small).getPcm();
+		bells[Timeline.BELL_LARGE] = soundBank.get(R.raw.bell_large).getPcm();
+		final short[] prep;
+		if (req.preparation.equals("gong"))
+			prep = soundBank.get(R.raw.prepare_gong).getPcm();
+		else if (req.preparation.equals("melody"))
+			prep = soundBank.get(R.raw.prepare_melody).getPcm();
+		else if (req.preparation.equals("click"))
+			prep = click.getPcm();
+		else
+			prep = null;
+		final int sampleRate = click.getSampleRate();
+		final SessionRenderer renderer = SessionRenderer.forTimeline(req.timeline, sampleRate, prep,
+							req.preparation.equals("click"), click.getPcm(), bells);
+		encode(renderer, outFile);
+	}
+
+	private void encode(final SessionRenderer renderer, final File outFile) throws IOException {
+		final int sampleRate = renderer.getSampleRate();
+		final MediaFormat format = MediaFormat.createAudioFormat(MIME_AAC, sampleRate, 1);
+		format.setInteger(MediaFormat.KEY_AAC_PROFILE, AAC_LC);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, CHUNK_FRAMES * 2);
+		final MediaCodec codec = MediaCodec.createEncoderByType(MIME_AAC);
+		final MediaMuxer muxer = new MediaMuxer(outFile.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		boolean muxerStarted = false;
+		try {
+			codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			codec.start();
+			final ByteBuffer[] inBuffers = codec.getInputBuffers();
+			ByteBuffer[] outBuffers = codec.getOutputBuffers();
+			final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			final short[] pcm = new short[CHUNK_FRAMES];
+			int trackIndex = -1;
+			long framesQueued = 0;
+			boolean inputDone = false;
+			boolean outputDone = false;
+			while (!outputDone) {
+				if (!inputDone) {
+					final int inIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+					if (inIndex >= 0) {
+						final ByteBuffer buf = inBuffers[inIndex];
+						buf.clear();
+						final int maxFrames = Math.min(CHUNK_FRAMES, buf.capacity() / 2);
+						final int count = renderer.render(pcm, maxFrames);
+						final long timeUs = framesQueued * 1000000L / sampleRate;
+						if (count <= 0) {
+							codec.queueInputBuffer(inIndex, 0, 0, timeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+							inputDone = true;
+						} else {
+							buf.order(ByteOrder.nativeOrder()).asShortBuffer().put(pcm, 0, count);
+							codec.queueInputBuffer(inIndex, 0, count * 2, timeUs, 0);
+							framesQueued += count;
+						}
+					}
+				}
+				final int outIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+				if (outIndex >= 0) {
+					if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0 && muxerStarted) {
+						final ByteBuffer buf = outBuffers[outIndex];
+						buf.position(info.offset);
+						buf.limit(info.offset + info.size);
+						muxer.writeSampleData(trackIndex, buf, info);
+					}
+					codec.releaseOutputBuffer(outIndex, false);
+					if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+						outputDone = true;
+				} else if (outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					outBuffers = codec.getOutputBuffers();
+				} else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					trackIndex = muxer.addTrack(codec.getOutputFormat());
+					muxer.start();
+					muxerStarted = true;
+				}
+			}
+			if (!muxerStarted)
+				throw new IOException("No encoded output");
+		} finally {
+			try {
+				codec.stop();
+			} catch (IllegalStateException e) {
+			}
+			codec.release();
+			try {
+				if (muxerStarted)
+					muxer.stop();
+			} catch (IllegalStateException e) {
+			}
+			muxer.release();
+		}
+	}
+
+	// inner classes
+	private static class Request {
+		private final String key;
+		private final Timeline timeline;
+		private final String preparation;
+		public Request(final String key, final Timeline timeline, final String preparation) {
+			this.key = key;
+			this.timeline = timeline;
+			this.preparation = preparation;
+		}
+	}
+}